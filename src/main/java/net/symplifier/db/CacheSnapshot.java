@@ -0,0 +1,292 @@
+package net.symplifier.db;
+
+import net.symplifier.db.exceptions.DatabaseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A snapshot of the row caches of a schema kept in a memory mapped file, for
+ * restarting with warm caches instead of reading all the rows back from the
+ * database.
+ *
+ * <pre>
+ *   [magic][format][schema fingerprint][created on]
+ *   for every model
+ *     [table name][row count][max id][version sum][complete][number of rows]
+ *     for every row
+ *       [length][row encoded with {@link ModelRowCodec}]
+ *   [end marker]
+ * </pre>
+ *
+ * <p>
+ *   The schema fingerprint is computed from the tables and the names and
+ *   types of their columns, a snapshot taken with a different schema is
+ *   rejected as a whole. The version of every table is its row count, its
+ *   largest id and the sum of the {@link Column.Version} of its rows on the
+ *   database, every insert, update or delete changes one of them. A table
+ *   whose version has changed since the snapshot is skipped and is loaded
+ *   from the database as usual. Only the models with a version column are
+ *   part of the snapshot, the updates on the others could not be detected.
+ * </p>
+ */
+public class CacheSnapshot {
+  private static final int MAGIC = 0x53594d43;     // SYMC
+  private static final int FORMAT = 2;
+
+  /* The size of the file regions mapped at a time */
+  private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+  private final Schema schema;
+
+  public CacheSnapshot(Schema schema) {
+    this.schema = schema;
+  }
+
+  /**
+   * Write the completely loaded rows of all the cached models to the file. The
+   * snapshot is written to a temporary file first and moved in place once
+   * complete.
+   *
+   * @param file The snapshot file
+   * @return The number of rows written
+   */
+  public long save(Path file) {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    long count = 0;
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      Writer writer = new Writer(channel);
+      writer.ensure(24);
+      writer.buffer.putInt(MAGIC);
+      writer.buffer.putInt(FORMAT);
+      writer.buffer.putLong(fingerprint(schema.getModels()));
+      writer.buffer.putLong(System.currentTimeMillis());
+
+      for(ModelStructure<? extends Model> structure:schema.getModels()) {
+        if (!isRestorable(structure)) {
+          continue;
+        }
+
+        ModelRowCodec codec = new ModelRowCodec(structure);
+        List<byte[]> rows = new ArrayList<>();
+        structure.forEachCachedRow(row -> rows.add(codec.encode(row)));
+
+        long[] version = getVersion(structure);
+        writer.putString(structure.getTableName());
+        writer.ensure(29);
+        writer.buffer.putLong(version[0]);
+        writer.buffer.putLong(version[1]);
+        writer.buffer.putLong(version[2]);
+        writer.buffer.put((byte) (structure.isFullyCached() ? 1 : 0));
+        writer.buffer.putInt(rows.size());
+        for(byte[] row:rows) {
+          writer.ensure(4 + row.length);
+          writer.buffer.putInt(row.length);
+          writer.buffer.put(row);
+        }
+        count += rows.size();
+      }
+
+      writer.ensure(4);
+      writer.buffer.putInt(-1);
+      channel.truncate(writer.position());
+    } catch (IOException e) {
+      throw new DatabaseException("Error while writing the cache snapshot " + file, e);
+    }
+
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new DatabaseException("Error while writing the cache snapshot " + file, e);
+    }
+    return count;
+  }
+
+  /**
+   * Restore the row caches from the file. Nothing is restored if the file
+   * doesn't exist or has been taken with a different schema, the tables that
+   * have changed on the database since the snapshot are skipped.
+   *
+   * @param file The snapshot file
+   * @return The number of rows restored
+   */
+  public long load(Path file) {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+
+    long count = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      Reader reader = new Reader(channel);
+      reader.ensure(24);
+      if (reader.buffer.getInt() != MAGIC || reader.buffer.getInt() != FORMAT) {
+        Schema.LOGGER.warn("Ignoring the cache snapshot " + file + ", not a snapshot");
+        return 0;
+      }
+      if (reader.buffer.getLong() != fingerprint(schema.getModels())) {
+        Schema.LOGGER.warn("Ignoring the cache snapshot " + file + ", taken with a different schema");
+        return 0;
+      }
+      reader.buffer.getLong();
+
+      while (true) {
+        String table = reader.getString();
+        if (table == null) {
+          break;
+        }
+
+        reader.ensure(29);
+        long rowCount = reader.buffer.getLong();
+        long maxId = reader.buffer.getLong();
+        long versionSum = reader.buffer.getLong();
+        boolean complete = reader.buffer.get() == 1;
+        int size = reader.buffer.getInt();
+
+        ModelStructure<? extends Model> structure = schema.getModelStructure(table);
+        boolean usable = structure != null && isRestorable(structure);
+        if (usable) {
+          long[] version = getVersion(structure);
+          usable = version[0] == rowCount && version[1] == maxId && version[2] == versionSum;
+          if (!usable) {
+            Schema.LOGGER.info("Skipping " + table + " in the cache snapshot, changed since the snapshot");
+          }
+        }
+
+        ModelRowCodec codec = usable ? new ModelRowCodec(structure) : null;
+        List<ModelRow> rows = new ArrayList<>(usable ? size : 0);
+        for(int i=0; i<size; ++i) {
+          reader.ensure(4);
+          int length = reader.buffer.getInt();
+          reader.ensure(length);
+          if (usable) {
+            ByteBuffer row = reader.buffer.slice();
+            row.limit(length);
+            rows.add(codec.decode(row));
+          }
+          reader.buffer.position(reader.buffer.position() + length);
+        }
+
+        if (usable) {
+          structure.restore(rows, complete);
+          count += rows.size();
+        }
+      }
+    } catch (IOException e) {
+      throw new DatabaseException("Error while reading the cache snapshot " + file, e);
+    }
+    return count;
+  }
+
+  /* The cached models whose changes can be detected through their version */
+  private static boolean isRestorable(ModelStructure<? extends Model> structure) {
+    return !structure.isInterface() && structure.getCachePolicy().isEnabled()
+            && structure.getVersionColumn() != null;
+  }
+
+  /* The row count, the largest id and the sum of the versions of the table
+     on the database */
+  @SuppressWarnings("unchecked")
+  private static <T extends Model> long[] getVersion(ModelStructure<T> structure) {
+    Column<T, Long> primaryKey = (Column<T, Long>) structure.getColumn(0);
+    Long max = structure.query().max(primaryKey);
+    Number sum = structure.query().sum(structure.getVersionColumn());
+    return new long[] { structure.query().count(), max == null ? 0 : max, sum == null ? 0 : sum.longValue() };
+  }
+
+  /* FNV-1a hash of the tables and their columns */
+  static long fingerprint(Collection<ModelStructure<? extends Model>> models) {
+    long hash = 0xcbf29ce484222325L;
+    for(ModelStructure<? extends Model> structure:models) {
+      StringBuilder str = new StringBuilder(structure.getTableName());
+      for(Column column:structure.getColumns()) {
+        str.append('|').append(column.getFieldName()).append(':').append(column.getValueType().getName());
+      }
+      str.append(';');
+
+      for(byte b:str.toString().getBytes(StandardCharsets.UTF_8)) {
+        hash ^= (b & 0xff);
+        hash *= 0x100000001b3L;
+      }
+    }
+    return hash;
+  }
+
+  /* Writes sequentially through the mapped regions of the file */
+  private static class Writer {
+    private final FileChannel channel;
+    private long regionStart;
+    private MappedByteBuffer buffer;
+
+    Writer(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+    }
+
+    long position() {
+      return regionStart + buffer.position();
+    }
+
+    void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        regionStart = position();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, bytes));
+      }
+    }
+
+    void putString(String str) throws IOException {
+      byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+      ensure(4 + bytes.length);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  /* Reads sequentially through the mapped regions of the file */
+  private static class Reader {
+    private final FileChannel channel;
+    private final long size;
+    private long regionStart;
+    private MappedByteBuffer buffer;
+
+    Reader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, REGION_SIZE));
+    }
+
+    void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        regionStart += buffer.position();
+        long length = Math.min(size - regionStart, Math.max(REGION_SIZE, bytes));
+        if (length < bytes) {
+          throw new IOException("Unexpected end of the snapshot");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, length);
+      }
+    }
+
+    /* The string or null at the end marker */
+    String getString() throws IOException {
+      ensure(4);
+      int length = buffer.getInt();
+      if (length < 0) {
+        return null;
+      }
+      ensure(length);
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
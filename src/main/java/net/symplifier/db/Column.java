@@ -1,11 +1,12 @@
 package net.symplifier.db;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import net.symplifier.db.cache.CachePolicy;
+import net.symplifier.db.cache.MemoryIndex;
+import net.symplifier.db.cache.RowCache;
+import net.symplifier.db.cache.RowCacheProvider;
 import net.symplifier.db.exceptions.ModelException;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * The basic model components that identifies a column in a table
@@ -17,7 +18,12 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
 
   private final Class<T> valueType;
 
-  private final Cache<T, ModelRow> cache;
+  /* The primary keys of the records by the value of this (unique) column */
+  private final RowCache<T, Long> cache;
+
+  private final boolean unique;
+
+  private final MemoryIndex.Type memoryIndex;
 
   private final T defaultValue;
 
@@ -48,11 +54,57 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
     this.fieldName = builder.getName();
     this.defaultValue = builder.getDefaultValue();
 
-    cache = builder.cacheLimit <= 0 ? null :
-            CacheBuilder.newBuilder().maximumSize(builder.getCacheLimit()).build();
+    this.unique = builder.isUnique();
+    this.memoryIndex = builder.getMemoryIndex();
 
+    cache = builder.cacheLimit <= 0 || !unique ? null : builder.getCachePolicy().create(null);
+  }
 
+  /**
+   * Check if the values of this column are unique across the records
+   *
+   * @return {@code true} for a unique column
+   */
+  public boolean isUnique() {
+    return unique;
+  }
 
+  /**
+   * Retrieve the primary key of the record with the given value from the
+   * column cache
+   *
+   * @param value The column value
+   * @return The primary key or {@code null} if not cached
+   */
+  Long getCachedId(T value) {
+    return cache == null ? null : cache.getIfPresent(value);
+  }
+
+  @SuppressWarnings("unchecked")
+  void cacheId(Object value, Long id) {
+    if (cache != null && value != null && id != null) {
+      cache.put((T) value, id);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  void uncache(Object value) {
+    if (cache != null && value != null) {
+      cache.invalidate((T) value);
+    }
+  }
+
+  boolean isCached() {
+    return cache != null;
+  }
+
+  /**
+   * The type of the in memory index declared on the column
+   *
+   * @return The index type or {@code null} if the column is not indexed
+   */
+  public MemoryIndex.Type getMemoryIndex() {
+    return memoryIndex;
   }
 
   /**
@@ -98,6 +150,16 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
     return false;
   }
 
+  /**
+   * Check if the column keeps the version of the row for the optimistic
+   * locking
+   *
+   * @return {@code true} for a {@link Version} column
+   */
+  public boolean isVersion() {
+    return false;
+  }
+
 
 
   public Object getParameterSetter() {
@@ -283,6 +345,41 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
   }
 
 
+  /**
+   * The version of the row for the optimistic locking. The version starts at
+   * 1 when the row is inserted and is incremented by every update, which is
+   * applied only if the row on the database still has the version the row was
+   * read with. Otherwise the update fails with a
+   * {@link net.symplifier.db.exceptions.ConcurrentUpdateException}.
+   *
+   * <p>
+   *   The version is never set by the update like the other fields, setting
+   *   it on a model changes the version expected on the database instead.
+   * </p>
+   */
+  public static class Version<M extends Model> extends Column<M, Long> {
+    public static final long INITIAL = 1L;
+
+    public Version() {
+      super(Long.class);
+    }
+
+    public Version(Builder<Long> builder) {
+      super(Long.class, builder);
+    }
+
+    @Override
+    public boolean isVersion() {
+      return true;
+    }
+
+    @Override
+    public Long getDefaultValue() {
+      Long value = super.getDefaultValue();
+      return value == null ? INITIAL : value;
+    }
+  }
+
   /**
    * A reference column that points to another model
    *
@@ -348,6 +445,52 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
     public java.lang.String getTargetFieldName() {
       return referenceModel.getPrimaryKeyField();
     }
+
+    /**
+     * Load the referenced records of all the given records at once (see
+     * {@link ModelStructure#getAll(Collection)}), so that the later calls to
+     * {@link Model#getReference(Reference)} are served from memory.
+     *
+     * @param records The records whose references are to be loaded
+     */
+    public void prefetch(Collection<? extends Model> records) {
+      prefetch(records, false);
+    }
+
+    /**
+     * Load the referenced records of all the given records at once, see
+     * {@link #prefetch(Collection)}
+     *
+     * @param records The records whose references are to be loaded
+     * @param readOnly {@code true} if the records come from a read only query,
+     *                 the referenced records are then retrieved only for
+     *                 reading as well (see {@link ModelStructure#getAll(Collection, boolean)})
+     */
+    @SuppressWarnings("unchecked")
+    public void prefetch(Collection<? extends Model> records, boolean readOnly) {
+      Set<Long> ids = new LinkedHashSet<>();
+      for(Model record:records) {
+        Long id = record.get(this);
+        if (id != null) {
+          ids.add(id);
+        }
+      }
+      if (ids.isEmpty()) {
+        return;
+      }
+
+      Map<Long, T> targets = new HashMap<>();
+      for(T target:referenceModel.getAll(ids, readOnly)) {
+        targets.put(target.getId(), target);
+      }
+
+      for(Model record:records) {
+        Long id = record.get(this);
+        if (id != null && record instanceof ModelInstance) {
+          ((ModelInstance) record).set(this, id, targets.get(id));
+        }
+      }
+    }
   }
 
   /**
@@ -479,6 +622,9 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
   public static class Builder<T> {
     private java.lang.String name = null;
     private int cacheLimit = 0;
+    private RowCacheProvider cacheProvider = null;
+    private boolean unique = false;
+    private MemoryIndex.Type memoryIndex = null;
 
     private T defaultValue = null;
 
@@ -502,6 +648,43 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
       return this;
     }
 
+    /**
+     * Set the cache implementation used for the column cache, the cache limit
+     * is still taken from {@link #setCacheLimit(int)}
+     * @param provider The cache provider
+     * @return self chaining
+     */
+    public Builder setCacheProvider(RowCacheProvider provider) {
+      this.cacheProvider = provider;
+      return this;
+    }
+
+    /**
+     * Mark the column as unique. The lookups on a unique column through
+     * {@link ModelStructure#findBy(Column, Object)} are served from the
+     * column cache when a cache limit is set. The generated table gets a
+     * plain index on the column for these lookups but no UNIQUE constraint,
+     * the uniqueness is up to the application (or a constraint added to the
+     * table separately)
+     * @param unique {@code true} for a unique column
+     * @return self chaining
+     */
+    public Builder setUnique(boolean unique) {
+      this.unique = unique;
+      return this;
+    }
+
+    /**
+     * Maintain an in memory index on the column over the cached rows, see
+     * {@link ModelStructure#addIndex(Column, MemoryIndex.Type)}
+     * @param type The type of the index
+     * @return self chaining
+     */
+    public Builder setMemoryIndex(MemoryIndex.Type type) {
+      this.memoryIndex = type;
+      return this;
+    }
+
     public Builder setDefaultValue(T value) {
       this.defaultValue = value;
       return this;
@@ -523,6 +706,18 @@ public abstract class Column<M extends Model, T> implements Query.FilterEntity {
       return cacheLimit;
     }
 
+    boolean isUnique() {
+      return unique;
+    }
+
+    MemoryIndex.Type getMemoryIndex() {
+      return memoryIndex;
+    }
+
+    CachePolicy getCachePolicy() {
+      return new CachePolicy().setMaximumSize(cacheLimit).setProvider(cacheProvider);
+    }
+
     T getDefaultValue() {
       return defaultValue;
     }
@@ -1,5 +1,7 @@
 package net.symplifier.db;
 
+import net.symplifier.db.exceptions.ConcurrentUpdateException;
+
 import java.util.*;
 
 /**
@@ -20,6 +22,9 @@ public abstract class DBSession {
   private final Set<Model> updatedInstances = new LinkedHashSet<>();
   private final Set<Model> deletedInstances = new LinkedHashSet<>();
 
+  /* The records loaded in this session */
+  private final IdentityMap identityMap = new IdentityMap();
+
   /**
    * Prepares a query for execution to retrieve data from the database
    *
@@ -46,11 +51,16 @@ public abstract class DBSession {
     doRollbackTransaction();
     // The easier of the implementations, we just need to forget everything
     clearAll();
+    // including the records that could have the changes rolled back
+    identityMap.clear();
   }
 
   public abstract void doRollbackTransaction();
 
   public final void commitTransaction(Schema schema) {
+    // Make sure all the deferred operations reach the database before the
+    // transaction is committed
+    doFlush();
     doCommitTransaction();
 
     // Once the transaction is completed, we need to update the cache
@@ -86,6 +96,11 @@ public abstract class DBSession {
       deletedRow.getStructure().removeFromCache(deletedRow);
     }
 
+    // Let the other nodes know about the changes
+    if (schema.getInvalidationBus() != null) {
+      publishChanges(schema);
+    }
+
 
     // Now fire the interceptors
     Iterator<Model> modelIterator;
@@ -100,15 +115,85 @@ public abstract class DBSession {
     }
 
     clearAll();
-
+    // The next transaction must see the changes committed by the others
+    // since the records were loaded
+    identityMap.clear();
   }
 
   public abstract void doCommitTransaction();
+
+  private void publishChanges(Schema schema) {
+    Map<ModelStructure, Set<Long>> changes = new LinkedHashMap<>();
+    for(Set<ModelRow> rows:Arrays.asList(insertedRows, updatedRows, deletedRows)) {
+      for(ModelRow row:rows) {
+        if (row.getId() != null) {
+          changes.computeIfAbsent(row.getStructure(), k -> new HashSet<>()).add(row.getId());
+        }
+      }
+    }
+
+    for(Map.Entry<ModelStructure, Set<Long>> entry:changes.entrySet()) {
+      schema.publishInvalidation(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Sends all the pending operations (like the inserts deferred in batch mode)
+   * to the database. Once flushed, all the inserted rows have their primary
+   * key available.
+   */
+  public final void flush() {
+    doFlush();
+  }
+
+  public abstract void doFlush();
+
+  /**
+   * Check if the session has changes that have not been committed yet. The
+   * cache doesn't reflect these changes until the commit.
+   *
+   * @return {@code true} if any row has been inserted, updated or deleted
+   */
+  public boolean hasChanges() {
+    return !insertedRows.isEmpty() || !updatedRows.isEmpty() || !deletedRows.isEmpty();
+  }
+
+  /**
+   * The records loaded in the current transaction of this session, through
+   * which the same record loaded more than once is the same instance
+   *
+   * @return The identity map of the session
+   */
+  public IdentityMap getIdentityMap() {
+    return identityMap;
+  }
+
   /**
-   * Inserts the row in the database
+   * Loads all the fields of the row from the database by its primary key
+   *
+   * @param row The empty row to be populated
+   * @param id The primary key of the row
+   * @return {@code true} if the row was found, {@code false} otherwise
+   */
+  public final boolean load(ModelRow row, long id) {
+    return doLoad(row, id);
+  }
+
+  public abstract boolean doLoad(ModelRow row, long id);
+
+  /**
+   * Inserts the row in the database. A session may defer the actual insert
+   * (batch mode), in which case the primary key of the row is available only
+   * after the session has been {@link #flush() flushed}
+   *
    * @param row A single row to be inserted
    */
   public final void insert(ModelRow row) {
+    Column version = row.getStructure().getVersionColumn();
+    if (version != null && row.get(version.getIndex()) == null) {
+      row.set(version.getIndex(), Column.Version.INITIAL);
+    }
+
     doInsert(row);
 
     // Once inserted, we must get the id as well
@@ -125,7 +210,13 @@ public abstract class DBSession {
    */
   public final void update(ModelRow row, long id) {
     // TODO The id field may not be needed here. Check the use cases and see if this could be removed
-    doUpdate(row, id);
+    try {
+      doUpdate(row, id);
+    } catch (ConcurrentUpdateException e) {
+      // The row has been read from a stale cache, don't let it happen again
+      row.getStructure().discard(id);
+      throw e;
+    }
 
     updatedRows.add(row);
   }
@@ -161,6 +252,10 @@ public abstract class DBSession {
    */
   public final void delete(ModelRow row) {
     doDelete(row);
+    Long id = row.getId();
+    if (id != null) {
+      identityMap.remove(row.getStructure(), id);
+    }
 
     deletedRows.add(row);
   }
@@ -1,5 +1,7 @@
 package net.symplifier.db;
 
+import java.util.List;
+
 /**
  * The Driver interface that provides Database driver specific functionality
  * to Schema
@@ -33,6 +35,15 @@ public interface Driver {
    */
   Object getField(Class valueType);
 
+  /**
+   * Invoked once the structure of the model has been completely built (all
+   * the columns and relationships initialized), allowing the driver to prepare
+   * anything it needs for working with the model
+   *
+   * @param structure The structure of the model
+   */
+  void registerModel(ModelStructure structure);
+
   /**
    * Runs a DDL to create the model structure in the database
    *
@@ -49,4 +60,35 @@ public interface Driver {
    */
   <T extends Model> Query<T> createQuery(Query.Builder<T> builder);
 
+  /**
+   * Create an aggregate query using the filter and the joins of the query
+   * builder
+   *
+   * @param builder The builder used for filtering the records
+   * @param groupBy The columns used for grouping, may be empty
+   * @param aggregates The aggregates to be computed
+   * @param <T> The Type of the model
+   * @return An aggregate query that could be executed on the database
+   */
+  <T extends Model> Query.Aggregate createAggregate(Query.Builder<T> builder,
+                                                    List<Column> groupBy,
+                                                    List<Query.AggregateColumn> aggregates);
+
+  /**
+   * Check if the LIKE comparisons of the database are case sensitive, the
+   * queries answered from the cache follow the same semantics
+   *
+   * @return {@code true} if the LIKE comparisons are case sensitive
+   */
+  boolean isLikeCaseSensitive();
+
+  /**
+   * Check if the null values come first in the ascending order of the
+   * database (and last in the descending order), the queries answered from
+   * the cache follow the same ordering
+   *
+   * @return {@code true} if the null values are ordered as the smallest values
+   */
+  boolean isNullsFirst();
+
 }
@@ -0,0 +1,192 @@
+package net.symplifier.db;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the entities of a {@link Query.Filter} into a {@link Predicate} on
+ * the rows of a model, for evaluating the filter on the cached rows. The
+ * predicate is a tree of small lambdas, each one capturing the column index
+ * and the parameter value it compares with, so it is compiled once per
+ * execution and evaluated for every row.
+ *
+ * <p>
+ *   The semantics follow SQL, a comparison involving a null value never
+ *   matches and AND takes precedence over OR. The LIKE patterns are matched
+ *   case sensitively or not as on the database, see
+ *   {@link Driver#isLikeCaseSensitive()}.
+ * </p>
+ */
+public final class FilterCompiler {
+
+  private FilterCompiler() {
+  }
+
+  /**
+   * Compile the filter entities
+   *
+   * @param structure The model whose rows are evaluated
+   * @param entities The entities of the filter
+   * @param values The values of the parameters, the default value of the
+   *               parameter is used when not available
+   * @return The predicate or {@code null} if the filter refers to columns of
+   *         other models
+   */
+  public static Predicate<ModelRow> compile(ModelStructure structure,
+                                            List<Query.FilterEntity> entities,
+                                            Map<Query.Parameter, Object> values) {
+    List<Predicate<ModelRow>> terms = new ArrayList<>();
+    Predicate<ModelRow> factor = null;
+
+    int i = 0;
+    while (i < entities.size()) {
+      Query.FilterEntity e = entities.get(i);
+      Predicate<ModelRow> predicate;
+      if (e == Query.FilterOp.or) {
+        if (factor != null) {
+          terms.add(factor);
+          factor = null;
+        }
+        i += 1;
+        continue;
+      } else if (e == Query.FilterOp.and) {
+        i += 1;
+        continue;
+      } else if (e instanceof Query.Filter) {
+        predicate = compile(structure, ((Query.Filter) e).getEntities(), values);
+        i += 1;
+      } else if (e instanceof Column) {
+        Query.FilterOp op = (Query.FilterOp) entities.get(i + 1);
+        boolean unary = op == Query.FilterOp.isNull || op == Query.FilterOp.isNotNull;
+        predicate = condition(structure, (Column) e, op, unary ? null : entities.get(i + 2), values);
+        i += unary ? 2 : 3;
+      } else {
+        return null;
+      }
+
+      if (predicate == null) {
+        return null;
+      }
+      factor = factor == null ? predicate : factor.and(predicate);
+    }
+
+    if (factor != null) {
+      terms.add(factor);
+    }
+
+    if (terms.isEmpty()) {
+      return row -> true;
+    }
+
+    Predicate<ModelRow> res = terms.get(0);
+    for(int t=1; t<terms.size(); ++t) {
+      res = res.or(terms.get(t));
+    }
+    return res;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Predicate<ModelRow> condition(ModelStructure structure, Column column,
+                                               Query.FilterOp op, Query.FilterEntity value,
+                                               Map<Query.Parameter, Object> values) {
+    if (column.getModel() != structure) {
+      return null;
+    }
+
+    final int idx = column.getIndex();
+    switch (op) {
+      case isNull:
+        return row -> row.get(idx) == null;
+      case isNotNull:
+        return row -> row.get(idx) != null;
+      case in:
+        Set<Object> set = new HashSet<>();
+        for(Query.Parameter p:((Query.ParameterList<?>) value).getParameters()) {
+          Object v = valueOf(p, values);
+          if (v != null) {
+            set.add(v);
+          }
+        }
+        return row -> set.contains(row.get(idx));
+    }
+
+    final Object v = valueOf((Query.Parameter) value, values);
+    if (v == null) {
+      return row -> false;
+    }
+
+    switch (op) {
+      case eq:
+        return row -> v.equals(row.get(idx));
+      case notEq:
+        return row -> {
+          Object r = row.get(idx);
+          return r != null && !v.equals(r);
+        };
+      case like:
+        final Pattern pattern = toPattern(v.toString(),
+                structure.getSchema().getDriver().isLikeCaseSensitive());
+        return row -> {
+          Object r = row.get(idx);
+          return r != null && pattern.matcher(r.toString()).matches();
+        };
+    }
+
+    if (!(v instanceof Comparable)) {
+      return null;
+    }
+
+    final Comparable c = (Comparable) v;
+    switch (op) {
+      case lt:
+        return row -> {
+          Object r = row.get(idx);
+          return r != null && c.compareTo(r) > 0;
+        };
+      case ltEq:
+        return row -> {
+          Object r = row.get(idx);
+          return r != null && c.compareTo(r) >= 0;
+        };
+      case gt:
+        return row -> {
+          Object r = row.get(idx);
+          return r != null && c.compareTo(r) < 0;
+        };
+      case gtEq:
+        return row -> {
+          Object r = row.get(idx);
+          return r != null && c.compareTo(r) <= 0;
+        };
+      default:
+        return null;
+    }
+  }
+
+  private static Object valueOf(Query.Parameter p, Map<Query.Parameter, Object> values) {
+    Object v = values.get(p);
+    return v == null ? p.getDefault() : v;
+  }
+
+  /* Convert the SQL LIKE pattern to a regular expression */
+  static Pattern toPattern(String like, boolean caseSensitive) {
+    StringBuilder regex = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for(char ch:like.toCharArray()) {
+      if (ch == '%' || ch == '_') {
+        if (literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        regex.append(ch == '%' ? ".*" : ".");
+      } else {
+        literal.append(ch);
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.compile(regex.toString(), caseSensitive ? Pattern.DOTALL : Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+  }
+}
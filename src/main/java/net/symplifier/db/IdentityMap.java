@@ -0,0 +1,82 @@
+package net.symplifier.db;
+
+import net.symplifier.db.cache.LongMap;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The records loaded within a {@link DBSession}, by their model and id, so
+ * that a record loaded more than once in the session (by different queries or
+ * through the references) is the same instance every time, along with the
+ * references already resolved on it. The rows shared across the sessions are
+ * kept in the row cache of the model, the instances are never shared.
+ *
+ * <p>
+ *   The instance is the one first loaded in the transaction, the changes
+ *   committed by the other sessions afterwards are not reflected on it. The
+ *   map is cleared when the transaction is committed or rolled back, so a
+ *   record loaded again afterwards is a new instance. The map is not thread
+ *   safe, it belongs to a single session.
+ * </p>
+ */
+public class IdentityMap {
+  private final Map<ModelStructure, LongMap<Model>> models = new IdentityHashMap<>();
+
+  /**
+   * Retrieve the record of the model loaded in the session
+   *
+   * @param structure The model
+   * @param id The primary key of the record
+   * @param <T> The type of the model
+   * @return The record or {@code null} if not loaded in the session
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Model> T get(ModelStructure<T> structure, long id) {
+    LongMap<Model> records = models.get(structure);
+    return records == null ? null : (T) records.get(id);
+  }
+
+  /**
+   * Keep the record in the map, replacing the record loaded before if any.
+   * The records without id are ignored.
+   *
+   * @param record The record
+   */
+  public void put(Model record) {
+    Long id = record.getId();
+    if (id != null) {
+      models.computeIfAbsent(record.getStructure(), k -> new LongMap<>()).put(id, record);
+    }
+  }
+
+  /**
+   * Forget the record, when it has been deleted
+   *
+   * @param structure The model
+   * @param id The primary key of the record
+   */
+  public void remove(ModelStructure structure, long id) {
+    LongMap<Model> records = models.get(structure);
+    if (records != null) {
+      records.remove(id);
+    }
+  }
+
+  public void clear() {
+    models.clear();
+  }
+
+  /**
+   * The number of records in the map
+   *
+   * @return The number of records
+   */
+  public int size() {
+    int res = 0;
+    for(LongMap<Model> records:models.values()) {
+      res += records.size();
+    }
+    return res;
+  }
+}
@@ -0,0 +1,55 @@
+package net.symplifier.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a query that has been answered from the memory, with all the
+ * records already available
+ */
+public class ListResult<T extends Model> implements Query.Result<T> {
+
+  private final List<T> records;
+  private int position;
+
+  public ListResult(List<T> records) {
+    this.records = records;
+  }
+
+  @Override
+  public List<T> toList() {
+    List<T> res = new ArrayList<>(records.size() - position);
+    res.addAll(records.subList(position, records.size()));
+    position = records.size();
+    return res;
+  }
+
+  @Override
+  public T next() {
+    if (position < records.size()) {
+      return records.get(position++);
+    }
+    return null;
+  }
+
+  @Override
+  public String getContinuationToken() {
+    return null;
+  }
+
+  @Override
+  @SafeVarargs
+  public final Query.Result<T> prefetch(Column.Reference<? super T, ?> ... references) {
+    List<T> remaining = Collections.unmodifiableList(records.subList(position, records.size()));
+    for(Column.Reference<? super T, ?> reference:references) {
+      reference.prefetch(remaining);
+    }
+    return this;
+  }
+
+  @Override
+  public void close() {
+    position = records.size();
+  }
+}
@@ -0,0 +1,421 @@
+package net.symplifier.db;
+
+import net.symplifier.db.cache.MemoryIndex;
+import net.symplifier.db.cache.SortedIndex;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The query answered through the in memory indexes of a fully cached model.
+ * A query qualifies when it is on a single table model without joins and its
+ * filter uses only the indexed columns of the model (range conditions need a
+ * sorted index). The filter is evaluated on the indexes to get the ids of the
+ * matching rows, which are then served from the cache.
+ *
+ * <p>
+ *   The queries built with {@link Query.Builder#fromCache()} qualify even
+ *   without the indexes, their filter is compiled into a predicate and all
+ *   the cached rows are scanned, in parallel for the larger models.
+ * </p>
+ *
+ * <p>
+ *   The query falls back to the database query when the model is not fully
+ *   cached at the time of execution or when the session has uncommitted
+ *   changes, which are visible to the database but not in the cache.
+ * </p>
+ */
+public class MemoryQuery<T extends Model> implements Query<T> {
+  /* The number of rows from which the scan is done in parallel */
+  private static final int PARALLEL_SCAN = 4096;
+
+  private final Query.Builder<T> builder;
+  private final ModelStructure<T> structure;
+  private final Query<T> fallback;
+  private final Node plan;
+
+  private MemoryQuery(Query.Builder<T> builder, Query<T> fallback, Node plan) {
+    this.builder = builder;
+    this.structure = builder.getPrimaryModel();
+    this.fallback = fallback;
+    this.plan = plan;
+  }
+
+  /**
+   * Wrap the database query with a memory query if the query qualifies
+   *
+   * @param builder The query builder
+   * @param query The database query
+   * @param <T> The primary model of the query
+   * @return The memory query or the given query if it doesn't qualify
+   */
+  public static <T extends Model> Query<T> wrap(Query.Builder<T> builder, Query<T> query) {
+    ModelStructure<T> structure = builder.getPrimaryModel();
+    if (structure.isInterface() || structure.getDependentTablesCount() != 1
+            || builder.getJoins().size() > 0 || builder.isKeyset()) {
+      return query;
+    }
+
+    for(Query.Order order:builder.getOrderBy()) {
+      Column col = order.getColumn();
+      if (col.getModel() != structure || !Comparable.class.isAssignableFrom(col.getValueType())) {
+        return query;
+      }
+    }
+
+    List<FilterEntity> entities = builder.getFilter().getEntities();
+    Node plan = compile(structure, entities);
+    if (plan == null && (!builder.isFromCache()
+            || FilterCompiler.compile(structure, entities, Collections.emptyMap()) == null)) {
+      return query;
+    }
+
+    return new MemoryQuery<>(builder, query, plan);
+  }
+
+  /**
+   * Evaluate the query from the memory
+   *
+   * @param session The session on which the query is executed
+   * @param values The values of the parameters
+   * @return The result or {@code null} if the query cannot be answered from
+   *         the memory at the moment
+   */
+  private Result<T> execute(DBSession session, Map<Parameter, Object> values) {
+    if (!structure.isFullyCached() || session.hasChanges()) {
+      return null;
+    }
+
+    List<ModelRow> rows = plan != null ? lookup(values) : scan(values);
+    if (rows == null) {
+      return null;
+    }
+
+    rows.sort(getComparator());
+
+    int offset = 0;
+    int limit = rows.size();
+    Query.Limit l = builder.getLimit();
+    if (l != null) {
+      Integer v = (Integer) valueOf(l.getLimit(), values);
+      if (v != null) {
+        limit = v;
+      }
+      if (l.getOffset() != null) {
+        v = (Integer) valueOf(l.getOffset(), values);
+        if (v != null) {
+          offset = v;
+        }
+      }
+    }
+
+    IdentityMap identities = builder.isReadOnly() ? null : session.getIdentityMap();
+    List<T> records = new ArrayList<>();
+    for(int i = offset; i < rows.size() && records.size() < limit; ++i) {
+      ModelRow row = rows.get(i);
+      T record = identities == null ? null : identities.get(structure, row.getId());
+      if (record == null) {
+        record = structure.create(row);
+        if (identities != null) {
+          identities.put(record);
+        } else {
+          record.lock();
+        }
+      }
+      records.add(record);
+    }
+    return new ListResult<>(records);
+  }
+
+  private List<ModelRow> lookup(Map<Parameter, Object> values) {
+    Set<Long> ids = plan.evaluate(structure, values);
+    List<ModelRow> rows = new ArrayList<>(ids.size());
+    for(Long id:ids) {
+      ModelRow row = structure.getCachedRow(id);
+      if (row == null) {
+        // Dropped from the cache since the ids were evaluated
+        return null;
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private List<ModelRow> scan(Map<Parameter, Object> values) {
+    Predicate<ModelRow> predicate = FilterCompiler.compile(structure, builder.getFilter().getEntities(), values);
+    if (predicate == null) {
+      return null;
+    }
+
+    Set<Long> ids = structure.getCachedIds();
+    Stream<Long> stream = ids.size() >= PARALLEL_SCAN ? ids.parallelStream() : ids.stream();
+    List<ModelRow> rows = stream.map(structure::getCachedRow)
+            .filter(row -> row == null || predicate.test(row))
+            .collect(Collectors.toList());
+    // Dropped from the cache during the scan
+    return rows.contains(null) ? null : rows;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Comparator<ModelRow> getComparator() {
+    // The nulls are ordered the same way as on the database
+    Comparator<Comparable> values = structure.getSchema().getDriver().isNullsFirst()
+            ? Comparator.nullsFirst(Comparator.naturalOrder())
+            : Comparator.nullsLast(Comparator.naturalOrder());
+
+    Comparator<ModelRow> res = null;
+    for(Query.Order order:builder.getOrderBy()) {
+      int idx = order.getColumn().getIndex();
+      Comparator<ModelRow> c = Comparator.comparing(row -> (Comparable) row.get(idx), values);
+      if (order.isDescending()) {
+        c = c.reversed();
+      }
+      res = res == null ? c : res.thenComparing(c);
+    }
+
+    // Keep the result stable
+    Comparator<ModelRow> byId = Comparator.comparing(ModelRow::getId);
+    return res == null ? byId : res.thenComparing(byId);
+  }
+
+  private static Object valueOf(Parameter p, Map<Parameter, Object> values) {
+    Object v = values.get(p);
+    return v == null ? p.getDefault() : v;
+  }
+
+  @Override
+  public Result<T> execute(DBSession session) {
+    return prepare(session).execute();
+  }
+
+  @Override
+  public <V> Prepared<T> set(Parameter<V> parameter, V value) {
+    return prepare().set(parameter, value);
+  }
+
+  @Override
+  public Prepared<T> prepare(DBSession session) {
+    return new MemoryPrepared(session);
+  }
+
+  @Override
+  public String toString() {
+    return fallback.toString();
+  }
+
+  private class MemoryPrepared implements Prepared<T> {
+    private final DBSession session;
+    private final Map<Parameter, Object> values = new HashMap<>();
+
+    MemoryPrepared(DBSession session) {
+      this.session = session;
+    }
+
+    @Override
+    public <V> Prepared<T> set(Parameter<V> parameter, V value) {
+      values.put(parameter, value);
+      return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Result<T> execute() {
+      Result<T> res = MemoryQuery.this.execute(session, values);
+      if (res != null) {
+        return res;
+      }
+
+      Prepared<T> prepared = fallback.prepare(session);
+      for(Map.Entry<Parameter, Object> entry:values.entrySet()) {
+        prepared.set(entry.getKey(), entry.getValue());
+      }
+      return prepared.execute();
+    }
+  }
+
+  /**
+   * Compile the filter entities into the evaluation plan. The AND conditions
+   * take precedence over the OR conditions as in SQL.
+   *
+   * @return The plan or {@code null} if the filter cannot be evaluated on the
+   *         indexes
+   */
+  private static Node compile(ModelStructure structure, List<FilterEntity> entities) {
+    List<Node> terms = new ArrayList<>();
+    List<Node> factors = new ArrayList<>();
+
+    int i = 0;
+    while (i < entities.size()) {
+      FilterEntity e = entities.get(i);
+      Node node;
+      if (e == FilterOp.or) {
+        if (factors.size() > 0) {
+          terms.add(And.of(factors));
+          factors = new ArrayList<>();
+        }
+        i += 1;
+        continue;
+      } else if (e == FilterOp.and) {
+        i += 1;
+        continue;
+      } else if (e instanceof Filter) {
+        node = compile(structure, ((Filter) e).getEntities());
+        i += 1;
+      } else if (e instanceof Column) {
+        FilterOp op = (FilterOp) entities.get(i + 1);
+        boolean unary = op == FilterOp.isNull || op == FilterOp.isNotNull;
+        FilterEntity value = unary ? null : entities.get(i + 2);
+        node = Condition.of(structure, (Column) e, op, value);
+        i += unary ? 2 : 3;
+      } else {
+        return null;
+      }
+
+      if (node == null) {
+        return null;
+      }
+      factors.add(node);
+    }
+
+    if (factors.size() > 0) {
+      terms.add(And.of(factors));
+    }
+
+    if (terms.size() == 0) {
+      // No filter, all the records
+      return (s, values) -> s.getCachedIds();
+    } else if (terms.size() == 1) {
+      return terms.get(0);
+    } else {
+      return (s, values) -> {
+        Set<Long> res = new HashSet<>();
+        for(Node term:terms) {
+          res.addAll(term.evaluate(s, values));
+        }
+        return res;
+      };
+    }
+  }
+
+  interface Node {
+    Set<Long> evaluate(ModelStructure structure, Map<Parameter, Object> values);
+  }
+
+  static class And implements Node {
+    private final List<Node> nodes;
+
+    private And(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    static Node of(List<Node> nodes) {
+      return nodes.size() == 1 ? nodes.get(0) : new And(nodes);
+    }
+
+    @Override
+    public Set<Long> evaluate(ModelStructure structure, Map<Parameter, Object> values) {
+      List<Set<Long>> sets = new ArrayList<>(nodes.size());
+      for(Node node:nodes) {
+        sets.add(node.evaluate(structure, values));
+      }
+      // Start with the smallest set
+      sets.sort(Comparator.comparingInt(Set::size));
+
+      Set<Long> res = new HashSet<>(sets.get(0));
+      for(int i=1; i<sets.size() && !res.isEmpty(); ++i) {
+        res.retainAll(sets.get(i));
+      }
+      return res;
+    }
+  }
+
+  static class Condition implements Node {
+    private final MemoryIndex index;
+    private final FilterOp op;
+    private final List<Parameter> parameters;
+
+    private Condition(MemoryIndex index, FilterOp op, List<Parameter> parameters) {
+      this.index = index;
+      this.op = op;
+      this.parameters = parameters;
+    }
+
+    static Condition of(ModelStructure structure, Column column, FilterOp op, FilterEntity value) {
+      MemoryIndex index = column.getModel() == structure ? structure.getIndex(column) : null;
+      if (index == null) {
+        return null;
+      }
+
+      switch (op) {
+        case lt:
+        case ltEq:
+        case gt:
+        case gtEq:
+          if (index.getType() != MemoryIndex.Type.SORTED) {
+            return null;
+          }
+          break;
+        case like:
+          return null;
+      }
+
+      List<Parameter> parameters;
+      if (value instanceof ParameterList) {
+        parameters = ((ParameterList) value).getParameters();
+      } else if (value instanceof Parameter) {
+        parameters = Collections.singletonList((Parameter) value);
+      } else {
+        parameters = Collections.emptyList();
+      }
+      return new Condition(index, op, parameters);
+    }
+
+    @Override
+    public Set<Long> evaluate(ModelStructure structure, Map<Parameter, Object> values) {
+      Object v = parameters.isEmpty() ? null : valueOf(parameters.get(0), values);
+
+      // The comparisons with null never match, as in SQL
+      switch (op) {
+        case eq:
+          return v == null ? Collections.emptySet() : index.get(v);
+        case in:
+          Set<Long> res = new HashSet<>();
+          for(Parameter p:parameters) {
+            Object pv = valueOf(p, values);
+            if (pv != null) {
+              res.addAll(index.get(pv));
+            }
+          }
+          return res;
+        case isNull:
+          return index.get(null);
+        case isNotNull:
+          return except(structure.getCachedIds(), index.get(null), Collections.emptySet());
+        case notEq:
+          if (v == null) {
+            return Collections.emptySet();
+          }
+          return except(structure.getCachedIds(), index.get(null), index.get(v));
+        default:
+          if (v == null) {
+            return Collections.emptySet();
+          }
+          SortedIndex sorted = (SortedIndex) index;
+          if (op == FilterOp.lt || op == FilterOp.ltEq) {
+            return sorted.range(null, false, v, op == FilterOp.ltEq);
+          } else {
+            return sorted.range(v, op == FilterOp.gtEq, null, false);
+          }
+      }
+    }
+
+    private static Set<Long> except(Set<Long> all, Set<Long> a, Set<Long> b) {
+      Set<Long> res = new HashSet<>(all);
+      res.removeAll(a);
+      res.removeAll(b);
+      return res;
+    }
+  }
+}
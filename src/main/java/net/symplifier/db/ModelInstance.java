@@ -116,7 +116,7 @@ public class ModelInstance<M extends ModelInstance> implements Model {
           Column.Interface interfaceColumn = getStructure().getImplementationColumn(s);
           Long implId = (Long)get((Column)interfaceColumn);
           row = set.allRows[level] = s.getRow(implId);
-          return (T)row.get(column.getIndex());
+          return row == null ? null : (T)row.get(column.getIndex());
         } else {
           // if this is a new record then we know the value is not there
           Long id = getId();
@@ -125,7 +125,7 @@ public class ModelInstance<M extends ModelInstance> implements Model {
           } else {
             row = set.allRows[level] = s.getRow(id);
           }
-          return (T)row.get(column.getIndex());
+          return row == null ? null : (T)row.get(column.getIndex());
         }
       } else {
         return (T)row.get(column.getIndex());
@@ -355,9 +355,27 @@ public class ModelInstance<M extends ModelInstance> implements Model {
     if (ref instanceof Column.Reference) {
       referencedData.put((Column.Reference)ref, model);
     } else if (ref instanceof Relation.HasMany) {
-      RelationalData d = hasManyData.get(ref);
-      d.add(model);
+      getRelationalData((Relation.HasMany)ref).add(model);
+    }
+  }
+
+  /**
+   * Helper method used by query loading to mark the relation as loaded, so
+   * that the relation is not loaded again even if no record has been found
+   *
+   * @param relation The relation being loaded
+   */
+  public void initRelation(Relation.HasMany relation) {
+    getRelationalData(relation);
+  }
+
+  private RelationalData getRelationalData(Relation.HasMany relation) {
+    RelationalData d = hasManyData.get(relation);
+    if (d == null) {
+      d = new RelationalData();
+      hasManyData.put(relation, d);
     }
+    return d;
   }
 
   /**
@@ -407,7 +425,7 @@ public class ModelInstance<M extends ModelInstance> implements Model {
 
     }
 
-    RelationalData<V> d = (RelationalData<V>)hasManyData.get(relation);
+    RelationalData<V> d = (RelationalData<V>)getRelationalData(relation);
     d.clear();
 
     List<V> res = builder.build().execute().toList();
@@ -465,6 +483,11 @@ public class ModelInstance<M extends ModelInstance> implements Model {
       // Save the record
       m.save(session);
 
+      // The insert might have been deferred by the session, we need the id
+      if (m.getId() == null) {
+        session.flush();
+      }
+
       // update the model with the referenced id
       set(entry.getKey(), m.getId());
     }
@@ -498,6 +521,8 @@ public class ModelInstance<M extends ModelInstance> implements Model {
         }
       }
 
+      requireId(session, row);
+
       // Update the implementation id on the respective row
       set((Column<?, Long>) structure.getImplementationColumn(impl), row.getId());
     }
@@ -517,6 +542,7 @@ public class ModelInstance<M extends ModelInstance> implements Model {
           row = new ModelRow(st);
           row.set(0, getId());
           session.insert(row);
+          requireId(session, row);
           set.primaryRow.set(0, row.getId());
         }
       } else {
@@ -525,6 +551,10 @@ public class ModelInstance<M extends ModelInstance> implements Model {
           st = row.getStructure();
           if(isNew) {
             session.insert(row);
+            // The rest of the hierarchy and the relations need the id
+            if (i < implStart - 1 || !hasManyData.isEmpty()) {
+              requireId(session, row);
+            }
             set.primaryRow.set(0, row.getId());
           } else {
             session.update(row, getId());
@@ -567,6 +597,19 @@ public class ModelInstance<M extends ModelInstance> implements Model {
     return true;
   }
 
+  /**
+   * Makes sure the primary key of the inserted row is available, flushing the
+   * session in case the insert has been deferred
+   *
+   * @param session The session on which the row was inserted
+   * @param row The inserted row
+   */
+  private static void requireId(DBSession session, ModelRow row) {
+    if (row.getId() == null) {
+      session.flush();
+    }
+  }
+
   @Override
   public JSONObject toJSON(int level) {
     // In case of nested JSON creation, we will nest till 5th level
@@ -4,6 +4,10 @@ package net.symplifier.db;
  * The underlying data class that actually keeps all the model data. A ModelInstance
  * provides a layer on top of this
  *
+ * The rows published in the cache are never modified, a row is copied before
+ * being changed (see {@link ModelStructure#newLoadingRow(long)}) and the copy
+ * replaces the cached row once complete, so the rows are read without locks.
+ *
  * Created by ranjan on 8/12/15.
  */
 public class ModelRow {
@@ -16,6 +20,10 @@ public class ModelRow {
   // Keep track of the fields that have been modified;
   private long modificationBits;
 
+  // Flag to mark that not all the fields of the row have been loaded from
+  // the database
+  private boolean partial;
+
   /**
    * A new model row creation
    *
@@ -42,6 +50,7 @@ public class ModelRow {
     this.rowData = new Object[ref.rowData.length];
     System.arraycopy(ref.rowData, 0, this.rowData, 0, rowData.length);
     this.modificationBits = 0;
+    this.partial = ref.partial;
   }
 
   /**
@@ -82,6 +91,37 @@ public class ModelRow {
     return getId()==null || modificationBits != 0;
   }
 
+  /**
+   * Check if the row has been loaded only partially. A row is partial when it
+   * has been created in the cache without its data or has only been loaded
+   * by queries that retrieve a subset of the columns. The values of the fields
+   * that were not loaded are not reliable for a partial row.
+   *
+   * @return {@code true} if not all the fields have been loaded
+   */
+  public boolean isPartial() {
+    return partial;
+  }
+
+  /**
+   * Mark the row as being partially or completely loaded
+   *
+   * @param partial {@code true} if not all the fields have been loaded
+   */
+  public void setPartial(boolean partial) {
+    this.partial = partial;
+  }
+
+  /**
+   * Retrieve the flags of the modified fields. The bit at the position of the
+   * field index is set if the field has been modified.
+   *
+   * @return The modification bits
+   */
+  public long getModificationBits() {
+    return modificationBits;
+  }
+
   /**
    * Checks if the individual fields within the row is modified or not.
    *
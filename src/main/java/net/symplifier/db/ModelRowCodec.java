@@ -0,0 +1,224 @@
+package net.symplifier.db;
+
+import net.symplifier.db.exceptions.ModelException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Encodes the {@link ModelRow} into a compact binary form and back, used for
+ * keeping the rows outside the java heap. Each column is encoded as per its
+ * {@link Column#getValueType()}, the null values are marked in a bitmap at the
+ * beginning and take no other space.
+ *
+ * <pre>
+ *   [null bitmap][value 0][value 1]...
+ *
+ *   Long, Date, Double   8 bytes
+ *   Integer, Float       4 bytes
+ *   Boolean              1 byte
+ *   String               4 byte length + UTF-8 bytes
+ *   byte[]               4 byte length + bytes
+ * </pre>
+ *
+ * Only the completely loaded rows are encoded, the modification flags are not
+ * part of the encoding.
+ */
+public class ModelRowCodec {
+  private static final byte LONG = 0;
+  private static final byte INT = 1;
+  private static final byte DOUBLE = 2;
+  private static final byte FLOAT = 3;
+  private static final byte BOOL = 4;
+  private static final byte STRING = 5;
+  private static final byte DATE = 6;
+  private static final byte BYTES = 7;
+
+  private final ModelStructure structure;
+
+  /* The encoding of each column, resolved on first use since the codec is
+   * created before the columns of the structure are known */
+  private volatile byte[] encodings;
+
+  public ModelRowCodec(ModelStructure structure) {
+    this.structure = structure;
+  }
+
+  private byte[] getEncodings() {
+    byte[] res = encodings;
+    if (res == null) {
+      res = new byte[structure.getColumnCount()];
+      for(int i=0; i<res.length; ++i) {
+        res[i] = encodingOf(structure.getColumn(i).getValueType());
+      }
+      encodings = res;
+    }
+    return res;
+  }
+
+  private byte encodingOf(Class type) {
+    if (type == Long.class) {
+      return LONG;
+    } else if (type == Integer.class) {
+      return INT;
+    } else if (type == Double.class) {
+      return DOUBLE;
+    } else if (type == Float.class) {
+      return FLOAT;
+    } else if (type == Boolean.class) {
+      return BOOL;
+    } else if (type == String.class) {
+      return STRING;
+    } else if (type == Date.class) {
+      return DATE;
+    } else if (type == byte[].class) {
+      return BYTES;
+    } else {
+      throw new ModelException(structure.getType(), "The column type " + type + " cannot be stored off heap");
+    }
+  }
+
+  /**
+   * Encode the row
+   *
+   * @param row The row to be encoded
+   * @return The encoded bytes
+   */
+  public byte[] encode(ModelRow row) {
+    byte[] types = getEncodings();
+    Object[] data = row.getData();
+
+    // The strings are converted only once
+    byte[][] variable = new byte[data.length][];
+    int size = (data.length + 7) / 8;
+    for(int i=0; i<data.length; ++i) {
+      Object value = data[i];
+      if (value == null) {
+        continue;
+      }
+
+      switch(types[i]) {
+        case LONG:
+        case DOUBLE:
+        case DATE:
+          size += 8;
+          break;
+        case INT:
+        case FLOAT:
+          size += 4;
+          break;
+        case BOOL:
+          size += 1;
+          break;
+        case STRING:
+          variable[i] = ((String) value).getBytes(StandardCharsets.UTF_8);
+          size += 4 + variable[i].length;
+          break;
+        case BYTES:
+          variable[i] = (byte[]) value;
+          size += 4 + variable[i].length;
+          break;
+      }
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    byte[] nulls = new byte[(data.length + 7) / 8];
+    for(int i=0; i<data.length; ++i) {
+      if (data[i] == null) {
+        nulls[i >> 3] |= 1 << (i & 7);
+      }
+    }
+    buffer.put(nulls);
+
+    for(int i=0; i<data.length; ++i) {
+      Object value = data[i];
+      if (value == null) {
+        continue;
+      }
+
+      switch(types[i]) {
+        case LONG:
+          buffer.putLong((Long) value);
+          break;
+        case INT:
+          buffer.putInt((Integer) value);
+          break;
+        case DOUBLE:
+          buffer.putDouble((Double) value);
+          break;
+        case FLOAT:
+          buffer.putFloat((Float) value);
+          break;
+        case BOOL:
+          buffer.put((byte)((Boolean) value ? 1 : 0));
+          break;
+        case DATE:
+          buffer.putLong(((Date) value).getTime());
+          break;
+        case STRING:
+        case BYTES:
+          buffer.putInt(variable[i].length);
+          buffer.put(variable[i]);
+          break;
+      }
+    }
+
+    return buffer.array();
+  }
+
+  /**
+   * Decode a row from the buffer. The buffer is read from its current
+   * position.
+   *
+   * @param buffer The buffer containing the encoded row
+   * @return A new row
+   */
+  public ModelRow decode(ByteBuffer buffer) {
+    byte[] types = getEncodings();
+    ModelRow row = new ModelRow(structure);
+    Object[] data = row.getData();
+
+    byte[] nulls = new byte[(data.length + 7) / 8];
+    buffer.get(nulls);
+
+    for(int i=0; i<data.length; ++i) {
+      if ((nulls[i >> 3] & (1 << (i & 7))) != 0) {
+        continue;
+      }
+
+      switch(types[i]) {
+        case LONG:
+          data[i] = buffer.getLong();
+          break;
+        case INT:
+          data[i] = buffer.getInt();
+          break;
+        case DOUBLE:
+          data[i] = buffer.getDouble();
+          break;
+        case FLOAT:
+          data[i] = buffer.getFloat();
+          break;
+        case BOOL:
+          data[i] = buffer.get() != 0;
+          break;
+        case DATE:
+          data[i] = new Date(buffer.getLong());
+          break;
+        case STRING:
+          byte[] str = new byte[buffer.getInt()];
+          buffer.get(str);
+          data[i] = new String(str, StandardCharsets.UTF_8);
+          break;
+        case BYTES:
+          byte[] bytes = new byte[buffer.getInt()];
+          buffer.get(bytes);
+          data[i] = bytes;
+          break;
+      }
+    }
+
+    return row;
+  }
+}
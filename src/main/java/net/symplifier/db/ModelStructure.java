@@ -1,13 +1,19 @@
 package net.symplifier.db;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import net.symplifier.core.application.Session;
 import net.symplifier.db.annotations.Table;
+import net.symplifier.db.cache.CachePolicy;
+import net.symplifier.db.cache.MemoryIndex;
+import net.symplifier.db.cache.OffHeapRowCache;
+import net.symplifier.db.cache.RowCache;
+import net.symplifier.db.exceptions.DatabaseException;
+import net.symplifier.db.exceptions.ModelException;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * The underlying structure or a model.
@@ -35,14 +41,30 @@ public class ModelStructure<T extends Model> {
   /* The factory object used to createModel the ModelInstance */
   private final Model.Factory<T> modelFactory;
 
+  /* The number of ids retrieved by a single query in getAll */
+  private static final int GET_ALL_BATCH = 500;
+
+  /* The number of rows fetched at a time while loading all the rows */
+  private static final int LOAD_FETCH_SIZE = 1000;
+
   /* The cache of data that belongs to this model */
-  private final Cache<Long, ModelRow> rowCache = CacheBuilder.newBuilder()
-          .maximumSize(1000)
-          .build();
+  private volatile CachePolicy cachePolicy;
+  private volatile RowCache<Long, ModelRow> rowCache;
 
   /* The list of all the columns of this model, mapped by name of the column */
   private final List<Column<T, ?>> columns;
   private final Map<String, Integer> columnIndex = new HashMap<>();
+  /* The unique columns that keep their own cache */
+  private final List<Column<T, ?>> uniqueColumns = new ArrayList<>();
+  /* The optimistic locking version of the rows, if any */
+  private Column<T, Long> versionColumn;
+
+  /* The in memory indexes over the cached rows, by the column */
+  private final Map<Column, MemoryIndex> memoryIndexes = new ConcurrentHashMap<>();
+  /* The ids of all the rows, while the model is fully cached */
+  private final Set<Long> cachedIds = ConcurrentHashMap.newKeySet();
+  /* Flag to mark that all the rows of the model are in the cache */
+  private volatile boolean fullyCached;
 
   /* The list of all the references of this model */
   /* This list is not being used at the moment, and may be useful only in case
@@ -90,18 +112,23 @@ public class ModelStructure<T extends Model> {
     columns = new ArrayList<>(2);
     Column.BackReference<T, U> u = new Column.BackReference<>(modelU);
     Column.BackReference<T, V> v = new Column.BackReference<>(modelV);
-    columns.add(u);
-    columns.add(v);
 
     u.setName(schema.getModelStructure(modelU).tableName);
     v.setName(schema.getModelStructure(modelV).tableName);
 
-    u.onInit(this);
-    v.onInit(this);
+    // The columns are looked up by their field names (<table>_id) the same
+    // way the relations address the intermediate table
+    for(Column col:new Column[] {u, v}) {
+      col.onInit(this);
+      columnIndex.put(col.getFieldName(), columns.size());
+      columns.add(col);
+    }
 
     // References yes
     references = null;
     effectiveTablesCount = 1;
+
+    setCachePolicy(new CachePolicy());
   }
 
   /**
@@ -120,19 +147,21 @@ public class ModelStructure<T extends Model> {
     // Get the name of the table from annotation if available otherwise
     // infer based on the name of the table
     Table table = modelClass.getAnnotation(Table.class);
-    if (table != null) {
+    if (table != null && table.value().length() > 0) {
       tableName = table.value();
     } else {
       tableName = Schema.toDBName(modelClass.getSimpleName());
     }
 
+    setCachePolicy(CachePolicy.of(table));
+
 
     // Get the list of the parents
     Class parent = modelClass.getSuperclass();
     if (parent == ModelInstance.class || parent == Model.class) {
       parents = new ModelStructure[0];
     } else {
-      ModelStructure parentStructure = schema.registerModel(parent, null);
+      ModelStructure parentStructure = schema.registerModel(parent, (Model.Factory) null);
       parents = new ModelStructure[parentStructure.parents.length + 1];
       int i = 0;
       for (; i < parents.length - 1; ++i) {
@@ -176,6 +205,18 @@ public class ModelStructure<T extends Model> {
 
             columnIndex.put(col.getFieldName(), columns.size());
             columns.add(col);
+            if (col.isUnique() && col.isCached()) {
+              uniqueColumns.add(col);
+            }
+            if (col.getMemoryIndex() != null) {
+              addIndex(col, col.getMemoryIndex());
+            }
+            if (col.isVersion()) {
+              if (versionColumn != null) {
+                throw new ModelException(modelClass, "The model has more than one version column");
+              }
+              versionColumn = col;
+            }
 
           }
 
@@ -294,17 +335,556 @@ public class ModelStructure<T extends Model> {
     return create(new ModelRow(this));
   }
 
-  public ModelRow getRow(long id) {
+  /**
+   * Change the policy of the row cache. The rows cached so far are discarded.
+   *
+   * @param policy The cache policy
+   */
+  public void setCachePolicy(CachePolicy policy) {
+    this.cachePolicy = policy;
+    this.fullyCached = false;
+    this.cachedIds.clear();
+    for(MemoryIndex index:memoryIndexes.values()) {
+      index.clear();
+    }
+
+    if (policy.isEnabled() && policy.getOffHeapSize() > 0) {
+      this.rowCache = new OffHeapRowCache(policy, new ModelRowCodec(this), this::load);
+    } else {
+      this.rowCache = policy.create(this::load);
+    }
+  }
+
+  public CachePolicy getCachePolicy() {
+    return cachePolicy;
+  }
+
+  /**
+   * Declare an in memory index on the column. The indexes are built when all
+   * the rows of the model are loaded in the cache with {@link #loadAll()} and
+   * are maintained with the committed changes afterwards. The queries on a
+   * fully cached model filtering only on the indexed columns are answered from
+   * the memory.
+   *
+   * @param column The column of this model
+   * @param type The type of the index
+   */
+  public void addIndex(Column<T, ?> column, MemoryIndex.Type type) {
+    if (column.getModel() != this) {
+      throw new ModelException(modelClass, "The column " + column.getFieldName() + " doesn't belong to the model");
+    }
+    if (type == MemoryIndex.Type.SORTED && !Comparable.class.isAssignableFrom(column.getValueType())) {
+      throw new ModelException(modelClass, "The column " + column.getFieldName() + " cannot be sorted");
+    }
+
+    MemoryIndex index = MemoryIndex.create(type);
+    for(Long id:cachedIds) {
+      ModelRow row = rowCache.getIfPresent(id);
+      if (row != null) {
+        index.add(id, row.get(column.getIndex()));
+      }
+    }
+    memoryIndexes.put(column, index);
+  }
+
+  /**
+   * Retrieve the in memory index of the column
+   *
+   * @param column The column
+   * @return The index or {@code null} if the column is not indexed
+   */
+  public MemoryIndex getIndex(Column column) {
+    return memoryIndexes.get(column);
+  }
+
+  /**
+   * Check if all the rows of the model are available in the cache. A model is
+   * fully cached once {@link #loadAll()} completes, as long as its cache never
+   * evicts the rows on its own.
+   *
+   * @return {@code true} if all the rows are in the cache
+   */
+  public boolean isFullyCached() {
+    return fullyCached;
+  }
+
+  /**
+   * The ids of all the rows of the fully cached model
+   *
+   * @return The ids, not to be modified
+   */
+  public Set<Long> getCachedIds() {
+    return Collections.unmodifiableSet(cachedIds);
+  }
+
+  /**
+   * Load all the rows of the model into the cache and build the in memory
+   * indexes. The model becomes fully cached if its cache doesn't evict, which
+   * is the case with {@link net.symplifier.db.cache.RowCacheProvider#UNBOUNDED}.
+   *
+   * @return The number of rows loaded
+   */
+  public long loadAll() {
+    return loadAll(null, 1);
+  }
+
+  /**
+   * Load all the rows of the model into the cache, splitting the primary key
+   * range into partitions that are loaded in parallel. Each partition is read
+   * as a stream on its own session (and connection) on the given executor.
+   *
+   * @param executor The executor running the partitions, the rows are loaded
+   *                 on the calling thread if {@code null}
+   * @param partitions The number of primary key ranges
+   * @return The number of rows loaded
+   * @see #loadAll()
+   */
+  @SuppressWarnings("unchecked")
+  public long loadAll(ExecutorService executor, int partitions) {
+    fullyCached = false;
+    cachedIds.clear();
+    for(MemoryIndex index:memoryIndexes.values()) {
+      index.clear();
+    }
+
+    Column<T, Long> primaryKey = (Column<T, Long>) columns.get(0);
+    long count = 0;
+    if (executor == null || partitions <= 1) {
+      count = loadRange(primaryKey, null, null);
+    } else {
+      try {
+        Long[] bounds = executor.submit(() -> inSession(() -> new Long[] {
+                query().min(primaryKey), query().max(primaryKey)
+        })).get();
+
+        if (bounds[0] != null) {
+          long min = bounds[0];
+          long max = bounds[1];
+          long step = Math.max(1, (max - min) / partitions + 1);
+
+          List<Future<Long>> loads = new ArrayList<>();
+          for (long from = min; from <= max; from += step) {
+            final long lo = from;
+            final long hi = Math.min(max, from + step - 1);
+            loads.add(executor.submit(() -> inSession(() -> loadRange(primaryKey, lo, hi))));
+          }
+
+          for (Future<Long> load : loads) {
+            count += load.get();
+          }
+        }
+      } catch (ExecutionException e) {
+        throw new DatabaseException("Error while loading " + tableName, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DatabaseException("Interrupted while loading " + tableName, e);
+      }
+    }
+
+    fullyCached = !rowCache.canEvict();
+    return count;
+  }
+
+  /* Load the rows with the primary key within the range, all if not given */
+  private long loadRange(Column<T, Long> primaryKey, Long from, Long to) {
+    Query.Builder<T> builder = query().fetchSize(LOAD_FETCH_SIZE);
+    if (from != null) {
+      builder.where(primaryKey.gtEq(from).and(primaryKey.ltEq(to)));
+    }
+
+    IdentityMap identities = getIdentityMap();
+    long count = 0;
+    try (Query.Result<T> result = builder.build().execute()) {
+      for(T record:result) {
+        ModelRow row = getCachedRow(record.getId());
+        if (row != null) {
+          addToIndexes(row);
+        }
+        // Only the rows are kept, not the records
+        if (identities != null) {
+          identities.remove(this, record.getId());
+        }
+        count += 1;
+      }
+    }
+    return count;
+  }
+
+  /* Run the task on a session of its own */
+  private static <R> R inSession(Callable<R> task) throws Exception {
+    Session session = Session.start(null);
     try {
-      // TODO if the row is not found, then probably we will have to run a query to retrieve the record
-      return rowCache.get(id, () -> new ModelRow(ModelStructure.this));
-    } catch (ExecutionException e) {
+      return task.call();
+    } finally {
+      session.end();
+    }
+  }
+
+  /**
+   * Go through all the completely loaded rows available in the cache
+   *
+   * @param action The action performed on each row
+   */
+  void forEachCachedRow(Consumer<ModelRow> action) {
+    rowCache.forEach((id, row) -> {
+      if (row != null && !row.isPartial()) {
+        action.accept(row);
+      }
+    });
+  }
+
+  /**
+   * Put the rows restored from a snapshot into the cache, along with the
+   * unique column caches and the in memory indexes. The model becomes fully
+   * cached if the rows were all the rows of the model and the cache doesn't
+   * evict.
+   *
+   * @param rows The rows
+   * @param complete Whether the rows are all the rows of the model
+   */
+  void restore(Iterable<ModelRow> rows, boolean complete) {
+    fullyCached = false;
+    cachedIds.clear();
+    for(MemoryIndex index:memoryIndexes.values()) {
+      index.clear();
+    }
+
+    for(ModelRow row:rows) {
+      rowCache.put(row.getId(), row);
+      addToIndexes(row);
+      for(Column<T, ?> col:uniqueColumns) {
+        col.cacheId(row.get(col.getIndex()), row.getId());
+      }
+    }
+
+    fullyCached = complete && !rowCache.canEvict();
+  }
+
+  private void addToIndexes(ModelRow row) {
+    cachedIds.add(row.getId());
+    for(Map.Entry<Column, MemoryIndex> entry:memoryIndexes.entrySet()) {
+      entry.getValue().add(row.getId(), row.get(entry.getKey().getIndex()));
+    }
+  }
+
+  /**
+   * Retrieve the row with all its fields loaded. On a cache miss (or if the
+   * cached row has been loaded only partially) the row is read from the
+   * database through the session of the current thread. The concurrent misses
+   * on the same id wait for a single load. A row read by a session with
+   * uncommitted changes could reflect those changes, so it is not cached.
+   *
+   * @param id The primary key of the row
+   * @return The row or {@code null} if the record doesn't exist
+   */
+  public ModelRow getRow(long id) {
+    if (hasUncommittedChanges()) {
+      ModelRow cached = getCachedRow(id);
+      return cached != null ? cached : load(id);
+    }
+
+    ModelRow row = rowCache.get(id);
+    if (row != null && row.isPartial()) {
+      // Replace the partial row, the threads missing on the same partial row
+      // wait for a single load
+      synchronized (row) {
+        ModelRow current = rowCache.getIfPresent(id);
+        if (current != row) {
+          // Already replaced (or removed) by some one else
+          return getRow(id);
+        }
+
+        ModelRow loaded = load(id);
+        if (loaded == null) {
+          rowCache.invalidate(id);
+          return null;
+        }
+        rowCache.replace(id, row, loaded);
+        row = loaded;
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Create a row for populating it with the data retrieved by a query, to be
+   * published into the cache with {@link #publishRow(ModelRow)} once
+   * populated. The row starts as a copy of the cached row so that the fields
+   * not retrieved by the query keep their values, or as an empty row marked
+   * as partial if the row is not in the cache. The cached rows are never
+   * modified, the readers never see a row being populated.
+   *
+   * @param id The primary key of the row
+   * @return A new row, private to the caller until published
+   */
+  public ModelRow newLoadingRow(long id) {
+    ModelRow current = rowCache.getIfPresent(id);
+    if (current != null) {
+      return current.copy();
+    }
+    return newDetachedRow(id);
+  }
+
+  /**
+   * Create an empty row, marked as partial, for populating it with the data
+   * retrieved by a read only query. The row is never published in the cache.
+   *
+   * @param id The primary key of the row
+   * @return A new row
+   */
+  public ModelRow newDetachedRow(long id) {
+    ModelRow row = new ModelRow(this);
+    row.set(0, id, false);
+    row.setPartial(true);
+    return row;
+  }
+
+  /**
+   * Publish the row populated by a query into the cache, replacing the cached
+   * row atomically. The row is not published if the cached row is more
+   * complete or, with a version column, newer than the given row.
+   *
+   * @param row The row created with {@link #newLoadingRow(long)}, not to be
+   *            modified afterwards
+   * @return The row in the cache, either the given row or the cached row
+   */
+  public ModelRow publishRow(ModelRow row) {
+    long id = row.getId();
+    while (true) {
+      ModelRow current = rowCache.getIfPresent(id);
+      if (current == null) {
+        if (rowCache.get(id, key -> row) == row) {
+          return row;
+        }
+        // Published by someone else in the meantime
+        continue;
+      }
+
+      if (current == row || !supersedes(row, current)) {
+        return current;
+      }
+      if (rowCache.replace(id, current, row)) {
+        return row;
+      }
+    }
+  }
+
+  /* Check if the row is to replace the current row in the cache */
+  private boolean supersedes(ModelRow row, ModelRow current) {
+    if (row.isPartial() && !current.isPartial()) {
+      return false;
+    }
+    if (versionColumn != null) {
+      Long version = (Long) row.get(versionColumn.getIndex());
+      Long currentVersion = (Long) current.get(versionColumn.getIndex());
+      if (version != null && currentVersion != null && version < currentVersion) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Load the row from the database
+   *
+   * @param id The primary key of the row
+   * @return The row or {@code null} if the record doesn't exist
+   */
+  private ModelRow load(long id) {
+    DBSession session = Session.get(schema, DBSession.class);
+    if (session == null) {
+      throw new DatabaseException("No session available for loading the record of " + tableName, null);
+    }
+    ModelRow row = new ModelRow(this);
+    if (session.load(row, id)) {
+      return row;
+    } else {
       return null;
     }
   }
 
+  /* Check if the session of the current thread has changes not committed yet */
+  private boolean hasUncommittedChanges() {
+    DBSession session = Session.get(schema, DBSession.class);
+    return session != null && session.hasChanges();
+  }
+
+  /**
+   * Retrieve the row from the cache only if all of its fields have been
+   * loaded.
+   *
+   * @param id The primary key of the row
+   * @return The cached row or {@code null} if the row is not in the cache or
+   *         is only partially loaded
+   */
+  public ModelRow getCachedRow(long id) {
+    ModelRow row = rowCache.getIfPresent(id);
+    if (row == null || row.isPartial()) {
+      return null;
+    }
+    return row;
+  }
+
+  /**
+   * Retrieve the record, the same instance as loaded before in the session of
+   * the current thread if any
+   *
+   * @param id The primary key of the record
+   * @return The record or {@code null} if the record doesn't exist
+   */
   public T get(long id) {
-    return create(getRow(id));
+    IdentityMap identities = getIdentityMap();
+    T res = identities == null ? null : identities.get(this, id);
+    if (res == null) {
+      ModelRow row = getRow(id);
+      res = row == null ? null : instance(row, identities);
+    }
+    return res;
+  }
+
+  /* The identity map of the session of the current thread, if any */
+  private IdentityMap getIdentityMap() {
+    DBSession session = Session.get(schema, DBSession.class);
+    return session == null ? null : session.getIdentityMap();
+  }
+
+  /* The record of the row, the one already in the identity map if any */
+  private T instance(ModelRow row, IdentityMap identities) {
+    if (identities == null) {
+      return create(row);
+    }
+
+    T res = identities.get(this, row.getId());
+    if (res == null) {
+      res = create(row);
+      identities.put(res);
+    }
+    return res;
+  }
+
+  /**
+   * Retrieve the record by the value of a unique column, like a natural key.
+   * The primary key of the record is looked up in the column cache first, the
+   * record is then served through the row cache. On a miss the record is
+   * queried on the column (indexed on the generated table) and remembered in
+   * the column cache.
+   *
+   * @param column A unique column of this model
+   * @param value The value of the column
+   * @param <V> The type of the column
+   * @return The record or {@code null} if there is no record with the value
+   */
+  @SuppressWarnings("unchecked")
+  public <V> T findBy(Column<? super T, V> column, V value) {
+    if (column.isPrimary()) {
+      return value == null ? null : get((Long) value);
+    }
+
+    if (!column.isUnique()) {
+      throw new ModelException(modelClass, "The column " + column.getFieldName() + " is not unique");
+    }
+
+    if (value == null) {
+      return null;
+    }
+
+    Long id = column.getCachedId(value);
+    if (id != null) {
+      ModelRow row = column.getModel().getRow(id);
+      // The mapping could be stale, if the value has been changed by another
+      // record that was not cached when it was updated
+      if (row != null && value.equals(row.get(column.getIndex()))) {
+        return get(id);
+      }
+      column.uncache(value);
+    }
+
+    Query.Builder<T> builder = query();
+    builder.where(((Column<T, V>) column).eq(value));
+    builder.limit(1);
+    try (Query.Result<T> result = builder.build().execute()) {
+      T record = result.next();
+      if (record != null) {
+        column.cacheId(value, record.getId());
+      }
+      return record;
+    }
+  }
+
+  /**
+   * Retrieve the records for all the given ids. The records available in the
+   * cache are served from the cache and all the others are retrieved with
+   * {@code WHERE id IN (...)} queries, each one covering a batch of ids.
+   *
+   * @param ids The primary keys of the records
+   * @return The records in the order of the ids, the ids whose records don't
+   *         exist are skipped
+   */
+  public List<T> getAll(Collection<Long> ids) {
+    return getAll(ids, false);
+  }
+
+  /**
+   * Retrieve the records for all the given ids, as with {@link #getAll(Collection)}.
+   * With {@code readOnly}, the records are retrieved the same way as by a
+   * read only query (see {@link Query.Builder#readOnly()}), the rows loaded
+   * are kept out of the cache and the records, not shared through the session,
+   * are returned locked.
+   *
+   * @param ids The primary keys of the records
+   * @param readOnly {@code true} to retrieve the records only for reading
+   * @return The records in the order of the ids, the ids whose records don't
+   *         exist are skipped
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> getAll(Collection<Long> ids, boolean readOnly) {
+    IdentityMap identities = readOnly ? null : getIdentityMap();
+    Map<Long, T> records = new HashMap<>();
+    List<Long> misses = new ArrayList<>();
+    for(Long id:ids) {
+      if (records.containsKey(id)) {
+        continue;
+      }
+
+      ModelRow row = getCachedRow(id);
+      if (row == null) {
+        misses.add(id);
+        // Keep the place, so duplicate ids are not fetched twice
+        records.put(id, null);
+      } else {
+        T record = instance(row, identities);
+        if (readOnly) {
+          record.lock();
+        }
+        records.put(id, record);
+      }
+    }
+
+    if (misses.size() > 0) {
+      DBSession session = Session.get(schema, DBSession.class);
+      Column<T, Long> primaryKey = (Column<T, Long>) columns.get(0);
+      for(int start = 0; start < misses.size(); start += GET_ALL_BATCH) {
+        Query.Builder<T> builder = query();
+        builder.where(primaryKey.in(Query.Parameter.batch(misses, start, GET_ALL_BATCH)));
+        if (readOnly) {
+          builder.readOnly();
+        }
+        try (Query.Result<T> result = builder.build().execute(session)) {
+          for (T record : result) {
+            records.put(record.getId(), record);
+          }
+        }
+      }
+    }
+
+    List<T> res = new ArrayList<>(ids.size());
+    for(Long id:ids) {
+      T record = records.get(id);
+      if (record != null) {
+        res.add(record);
+      }
+    }
+    return res;
   }
 
   public int getColumnCount() {
@@ -335,6 +915,33 @@ public class ModelStructure<T extends Model> {
     }
   }
 
+  /**
+   * The column keeping the version of the rows for the optimistic locking
+   *
+   * @return The version column or {@code null} if the model doesn't have one
+   */
+  public Column<T, Long> getVersionColumn() {
+    return versionColumn;
+  }
+
+  /**
+   * Check if the row has been changed on the database since it was read, by
+   * comparing its version with the version on the database
+   *
+   * @param row The row of this model
+   * @return {@code true} if the row has been changed or deleted
+   */
+  @SuppressWarnings("unchecked")
+  public boolean isStale(ModelRow row) {
+    if (versionColumn == null) {
+      throw new ModelException(modelClass, "The model doesn't have a version column");
+    }
+
+    Column<T, Long> primaryKey = (Column<T, Long>) columns.get(0);
+    Long version = query().where(primaryKey.eq(row.getId())).max(versionColumn);
+    return version == null || !version.equals(row.get(versionColumn.getIndex()));
+  }
+
   /**
    * Returns the number of tables that are affected by this model. This total
    * includes the number of parent tables and the implemented tables
@@ -403,7 +1010,100 @@ public class ModelStructure<T extends Model> {
     // TODO Dilemma here, what do do during the update
     // either replace the existing model row with the new row
     // or update all the properties in the model row
+    ModelRow previous = rowCache.getIfPresent(updatedRow.getId());
     rowCache.put(updatedRow.getId(), updatedRow);
+
+    // The indexes are maintained only while all the rows are cached
+    if (fullyCached) {
+      if (previous == null || previous.isPartial() || !cachedIds.contains(updatedRow.getId())) {
+        addToIndexes(updatedRow);
+      } else {
+        for (Map.Entry<Column, MemoryIndex> entry : memoryIndexes.entrySet()) {
+          int idx = entry.getKey().getIndex();
+          entry.getValue().update(updatedRow.getId(), previous.get(idx), updatedRow.get(idx));
+        }
+      }
+    }
+
+    for(Column<T, ?> col:uniqueColumns) {
+      Object value = updatedRow.get(col.getIndex());
+      if (previous != null && previous != updatedRow && !previous.isPartial()) {
+        Object old = previous.get(col.getIndex());
+        if (old != null && !old.equals(value)) {
+          col.uncache(old);
+        }
+      }
+      col.cacheId(value, updatedRow.getId());
+    }
+  }
+
+  /**
+   * Bring the cache in line with the changes committed on the rows by another
+   * node. The rows of a fully cached model are read again so that the model
+   * stays fully cached, the rows of the other models are simply evicted and
+   * are loaded on their next use.
+   *
+   * @param ids The ids of the changed rows
+   */
+  void invalidate(long[] ids) {
+    if (fullyCached) {
+      try {
+        inSession(() -> {
+          for(long id:ids) {
+            refresh(id);
+          }
+          return null;
+        });
+        return;
+      } catch (Exception e) {
+        Schema.LOGGER.error("Could not refresh the rows of " + tableName + ", no longer fully cached", e);
+        fullyCached = false;
+      }
+    }
+
+    for(long id:ids) {
+      evict(id);
+    }
+  }
+
+  /**
+   * Discard the cached copy of a row found to be stale, the row is read again
+   * through the session of the current thread if the model is fully cached.
+   * A session with uncommitted changes could read them as well, the row is
+   * then only evicted and the model is no longer fully cached.
+   *
+   * @param id The id of the row
+   */
+  void discard(long id) {
+    if (fullyCached && !hasUncommittedChanges()) {
+      refresh(id);
+    } else {
+      fullyCached = false;
+      evict(id);
+    }
+  }
+
+  /* Read the row again and update the cache, the indexes included */
+  private void refresh(long id) {
+    ModelRow row = load(id);
+    if (row != null) {
+      updateCache(row);
+    } else {
+      ModelRow previous = getCachedRow(id);
+      if (previous != null) {
+        removeFromCache(previous);
+      }
+    }
+  }
+
+  private void evict(long id) {
+    ModelRow previous = rowCache.getIfPresent(id);
+    rowCache.invalidate(id);
+    if (previous != null && !previous.isPartial()) {
+      for(Column<T, ?> col:uniqueColumns) {
+        col.uncache(previous.get(col.getIndex()));
+      }
+    }
   }
 
   /**
@@ -411,6 +1111,18 @@ public class ModelStructure<T extends Model> {
    * @param deletedRow
    */
   public void removeFromCache(ModelRow deletedRow) {
+    ModelRow previous = rowCache.getIfPresent(deletedRow.getId());
     rowCache.invalidate(deletedRow.getId());
+
+    if (cachedIds.remove(deletedRow.getId())) {
+      // The index has the values of the cached row
+      ModelRow indexed = previous == null ? deletedRow : previous;
+      for (Map.Entry<Column, MemoryIndex> entry : memoryIndexes.entrySet()) {
+        entry.getValue().remove(deletedRow.getId(), indexed.get(entry.getKey().getIndex()));
+      }
+    }
+    for(Column<T, ?> col:uniqueColumns) {
+      col.uncache(deletedRow.get(col.getIndex()));
+    }
   }
 }
@@ -3,6 +3,8 @@ package net.symplifier.db;
 import net.symplifier.core.application.Session;
 
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The data extraction Query
@@ -49,6 +51,26 @@ public interface Query<T extends Model> {
     public V getDefault() {
       return defaultValue;
     }
+
+    /**
+     * Creates the parameters for an IN filter on a batch of values. The batch
+     * is always padded to the given size with the last value, so that the SQL
+     * generated is the same for all the batches and could be reused.
+     *
+     * @param values All the values
+     * @param start The position of the first value of the batch
+     * @param size The size of the batch
+     * @return The parameters for the batch
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> Parameter<V>[] batch(List<V> values, int start, int size) {
+      int end = Math.min(values.size(), start + size);
+      Parameter<V>[] params = new Parameter[size];
+      for(int i=0; i<size; ++i) {
+        params[i] = new Parameter<>(values.get(Math.min(start + i, end - 1)));
+      }
+      return params;
+    }
   }
 
   class ParameterList<V> implements Query.FilterEntity {
@@ -67,9 +89,16 @@ public interface Query<T extends Model> {
       Collections.addAll(parameters, values);
     }
 
+    @SuppressWarnings("unchecked")
     public ParameterList init(Column<?, V> column) {
       assert(this.column == null);
       this.column = column;
+      // The individual parameters need the setter of the column as well
+      for(Parameter p:parameters) {
+        if (p.getSetter() == null) {
+          p.init(column);
+        }
+      }
       return this;
     }
 
@@ -89,12 +118,91 @@ public interface Query<T extends Model> {
     Result<T> execute();
   }
 
-  interface Result<T extends Model> {
+  /**
+   * The records retrieved by executing a query. The records are hydrated one
+   * at a time as they are read, so iterating through the result or using its
+   * {@link #stream()} doesn't load the entire result in memory.
+   *
+   * <p>
+   *   The result holds on to the underlying database cursor until all the
+   *   records have been read or the result is closed. Use it within a
+   *   try-with-resources block when the records may not be read completely.
+   * </p>
+   */
+  interface Result<T extends Model> extends Iterable<T>, AutoCloseable {
 
     List<T> toList();
 
+    /**
+     * Retrieve the next record
+     *
+     * @return The next record or {@code null} if there are no more records
+     */
     T next();
 
+    /**
+     * Retrieve the token for continuing with the records following the last
+     * record retrieved from this result. The token is available only for the
+     * queries using keyset pagination, see {@link Builder#after(String)}.
+     *
+     * @return The continuation token or {@code null} if no record has been
+     *         retrieved or the query doesn't use keyset pagination
+     */
+    String getContinuationToken();
+
+    /**
+     * Load the referenced records along with the records of this result. The
+     * records are read in batches and the references of each batch are
+     * loaded with a single query.
+     *
+     * @param references The reference columns of the primary model
+     * @return The result for chaining
+     * @see Builder#prefetch(Column.Reference[])
+     */
+    Result<T> prefetch(Column.Reference<? super T, ?> ... references);
+
+    /**
+     * Release the underlying database resources. Any remaining records are
+     * discarded.
+     */
+    @Override
+    void close();
+
+    @Override
+    default Iterator<T> iterator() {
+      return new Iterator<T>() {
+        private T record;
+        private boolean fetched;
+
+        @Override
+        public boolean hasNext() {
+          if (!fetched) {
+            record = Result.this.next();
+            fetched = true;
+          }
+          return record != null;
+        }
+
+        @Override
+        public T next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          fetched = false;
+          return record;
+        }
+      };
+    }
+
+    /**
+     * A sequential stream of the records, which closes the result when the
+     * stream is closed
+     *
+     * @return Stream of the records
+     */
+    default Stream<T> stream() {
+      return StreamSupport.stream(spliterator(), false).onClose(this::close);
+    }
   }
 
   interface FilterEntity {
@@ -165,6 +273,170 @@ public interface Query<T extends Model> {
 
   }
 
+  /**
+   * The aggregate functions that could be computed by the database
+   */
+  enum AggregateOp {
+    count,
+    sum,
+    min,
+    max,
+    avg,
+
+    /* Not really an aggregate, checks for the existence of any record */
+    exists
+  }
+
+  /**
+   * An aggregate function applied on a column, the column is {@code null} for
+   * counting the records
+   */
+  class AggregateColumn {
+    private final AggregateOp op;
+    private final Column column;
+
+    public AggregateColumn(AggregateOp op, Column column) {
+      this.op = op;
+      this.column = column;
+    }
+
+    public AggregateOp getOp() {
+      return op;
+    }
+
+    public Column getColumn() {
+      return column;
+    }
+  }
+
+  /**
+   * The aggregate query compiled by the driver
+   */
+  interface Aggregate {
+
+    /**
+     * Executes the aggregate query
+     *
+     * @param session The database session
+     * @return One tuple for each group, a single tuple if there is no grouping
+     */
+    List<Tuple> execute(DBSession session);
+
+    default List<Tuple> execute() {
+      DBSession session = Session.get(Schema.get(), DBSession.class);
+      return execute(session);
+    }
+  }
+
+  /**
+   * A single record of an aggregate query. The values of the group by columns
+   * are followed by the values of the aggregates in the order in which they
+   * were defined. The tuples are not related to any model and are never
+   * cached.
+   */
+  class Tuple {
+    private final List<Column> groupBy;
+    private final Object[] values;
+
+    public Tuple(List<Column> groupBy, Object[] values) {
+      this.groupBy = groupBy;
+      this.values = values;
+    }
+
+    public int size() {
+      return values.length;
+    }
+
+    public Object get(int index) {
+      return values[index];
+    }
+
+    /**
+     * Retrieve the value of a group by column
+     *
+     * @param column The column used for grouping
+     * @param <V> The value type of the column
+     * @return The value of the column for the group
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(Column<?, V> column) {
+      int index = groupBy.indexOf(column);
+      if (index < 0) {
+        throw new IllegalArgumentException("The column " + column.getFieldName() + " is not part of the group");
+      }
+      return (V)values[index];
+    }
+
+    public Long getLong(int index) {
+      Object v = values[index];
+      return v == null ? null : ((Number)v).longValue();
+    }
+
+    public Double getDouble(int index) {
+      Object v = values[index];
+      return v == null ? null : ((Number)v).doubleValue();
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(values);
+    }
+  }
+
+  /**
+   * Builds an aggregate query that computes the aggregates for each distinct
+   * value of the group by columns
+   *
+   * @param <T> The primary model of the query
+   */
+  class GroupBy<T extends Model> {
+    private final Builder<T> builder;
+    private final List<Column> columns;
+    private final List<AggregateColumn> aggregates = new ArrayList<>();
+
+    GroupBy(Builder<T> builder, Column[] columns) {
+      this.builder = builder;
+      this.columns = Arrays.asList(columns);
+    }
+
+    public GroupBy<T> count() {
+      aggregates.add(new AggregateColumn(AggregateOp.count, null));
+      return this;
+    }
+
+    public GroupBy<T> sum(Column<? super T, ? extends Number> column) {
+      aggregates.add(new AggregateColumn(AggregateOp.sum, column));
+      return this;
+    }
+
+    public GroupBy<T> min(Column<? super T, ?> column) {
+      aggregates.add(new AggregateColumn(AggregateOp.min, column));
+      return this;
+    }
+
+    public GroupBy<T> max(Column<? super T, ?> column) {
+      aggregates.add(new AggregateColumn(AggregateOp.max, column));
+      return this;
+    }
+
+    public GroupBy<T> avg(Column<? super T, ? extends Number> column) {
+      aggregates.add(new AggregateColumn(AggregateOp.avg, column));
+      return this;
+    }
+
+    public Aggregate build() {
+      return builder.getPrimaryModel().getSchema().createAggregate(builder, columns, aggregates);
+    }
+
+    public List<Tuple> execute(DBSession session) {
+      return build().execute(session);
+    }
+
+    public List<Tuple> execute() {
+      return build().execute();
+    }
+  }
+
   /**
    * Keep track of the fields that provide ordering in the Query
    *
@@ -217,6 +489,17 @@ public interface Query<T extends Model> {
     private final Set<Column<T, ?>> fields;
 
     private Limit limit;
+    private int fetchSize;
+    private boolean fromCache;
+    private boolean readOnly;
+
+    /* The references loaded in batches along with the records */
+    private final List<Column.Reference> prefetch = new ArrayList<>();
+
+    /* Keyset pagination, the position after which the records are retrieved */
+    private boolean keyset;
+    private String seekToken;
+    private Object[] seekValues;
 
     /**
      * Constructor for use within Model implementation classes to define
@@ -264,14 +547,114 @@ public interface Query<T extends Model> {
 
     public Set<Order> getOrderBy() { return orderBy; }
 
+    /**
+     * The columns of the primary model that need to be retrieved. The primary
+     * key is always retrieved.
+     *
+     * @return The set of columns or {@code null} if all the columns are needed
+     */
+    public Set<Column<T, ?>> getFields() {
+      return fields;
+    }
+
     public Limit getLimit() {
       return limit;
     }
 
+    public int getFetchSize() {
+      return fetchSize;
+    }
+
+    public boolean isFromCache() {
+      return fromCache;
+    }
+
+    public boolean isReadOnly() {
+      return readOnly;
+    }
+
+    public List<Column.Reference> getPrefetch() {
+      return prefetch;
+    }
+
+    public boolean isKeyset() {
+      return keyset;
+    }
+
+    public String getSeekToken() {
+      return seekToken;
+    }
+
+    public Object[] getSeekValues() {
+      return seekValues;
+    }
+
     public Query<T> build() {
       return primaryModel.getSchema().createQuery(this);
     }
 
+    private Object aggregate(AggregateOp op, Column column) {
+      List<Tuple> res = primaryModel.getSchema().createAggregate(this,
+              Collections.emptyList(),
+              Collections.singletonList(new AggregateColumn(op, column))).execute();
+      return res.isEmpty() ? null : res.get(0).get(0);
+    }
+
+    /**
+     * Count the number of records matching the query on the database, within
+     * the limit of the query. When the query has joins, the distinct records
+     * of the primary model are counted.
+     *
+     * @return The number of records
+     */
+    public long count() {
+      return ((Number)aggregate(AggregateOp.count, null)).longValue();
+    }
+
+    /**
+     * Check if any record matches the query
+     *
+     * @return {@code true} if at least one record exists
+     */
+    public boolean exists() {
+      return aggregate(AggregateOp.exists, null) != null;
+    }
+
+    /**
+     * Compute the sum of the column on the database
+     *
+     * @param column The numeric column
+     * @return A {@link Long} for integral columns and {@link java.lang.Double}
+     *         for the others, {@code null} if there are no records
+     */
+    public Number sum(Column<? super T, ? extends Number> column) {
+      return (Number)aggregate(AggregateOp.sum, column);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <V> V min(Column<? super T, V> column) {
+      return (V)aggregate(AggregateOp.min, column);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <V> V max(Column<? super T, V> column) {
+      return (V)aggregate(AggregateOp.max, column);
+    }
+
+    public java.lang.Double avg(Column<? super T, ? extends Number> column) {
+      return (java.lang.Double)aggregate(AggregateOp.avg, column);
+    }
+
+    /**
+     * Group the records by the given columns for computing the aggregates
+     *
+     * @param columns The columns of the primary model used for grouping
+     * @return The group by builder for defining the aggregates
+     */
+    public GroupBy<T> groupBy(Column<? super T, ?> ... columns) {
+      return new GroupBy<>(this, columns);
+    }
+
 
 
     public Builder<T> where(Filter<T> filter) {
@@ -336,13 +719,112 @@ public interface Query<T extends Model> {
 //      return this;
 //    }
 
+    /**
+     * Hint for the number of rows to be fetched from the database at a time
+     * while reading through the result. The hint is passed on to the JDBC
+     * statement, a value of 0 uses the default of the database driver.
+     *
+     * @param fetchSize The number of rows
+     * @return The builder
+     */
+    public Builder<T> fetchSize(int fetchSize) {
+      this.fetchSize = fetchSize;
+      return this;
+    }
+
+    /**
+     * Evaluate the query on the cached rows when the primary model is fully
+     * cached (see {@link ModelStructure#loadAll()}), scanning all the rows
+     * with the filter compiled by {@link FilterCompiler}. Without this option
+     * only the queries that could be answered through the in memory indexes
+     * are evaluated on the cache. The query is still executed on the database
+     * when it has joins or the model is not fully cached.
+     *
+     * @return The builder
+     */
+    public Builder<T> fromCache() {
+      this.fromCache = true;
+      return this;
+    }
+
+    /**
+     * Retrieve the records only for reading, for the reports and the exports
+     * going through a large number of records. The rows retrieved from the
+     * database are not put in the cache, so the rows used by the rest of the
+     * application stay in the cache, and the records are returned locked
+     * (see {@link Model#lock()}).
+     *
+     * @return The builder
+     */
+    public Builder<T> readOnly() {
+      this.readOnly = true;
+      return this;
+    }
+
+    /**
+     * Load the referenced records along with the result. The distinct ids of
+     * the references across a batch of records are loaded with a single query
+     * instead of one lookup for every record on
+     * {@link Model#getReference(Column.Reference)}
+     *
+     * @param references The reference columns of the primary model
+     * @return The builder
+     */
+    @SafeVarargs
+    public final Builder<T> prefetch(Column.Reference<? super T, ?> ... references) {
+      for(Column.Reference<? super T, ?> reference:references) {
+        prefetch.add(reference);
+      }
+      return this;
+    }
+
+    /**
+     * Use keyset pagination and retrieve the records following the position
+     * given by the continuation token of the previous page (see
+     * {@link Result#getContinuationToken()}). Instead of skipping the rows
+     * with an offset, the last seen values of the ORDER BY columns are used
+     * as a filter, so every page costs the same irrespective of its depth.
+     *
+     * <p>
+     *   The primary key is added to the ordering to break the ties. The
+     *   ordering columns must belong to the primary model and must not be
+     *   null, they are retrieved even when left out of the projection. Use it
+     *   with {@link #limit(int)} to define the page size.
+     * </p>
+     *
+     * @param token The continuation token or {@code null} for the first page
+     * @return The builder
+     */
+    public Builder<T> after(String token) {
+      this.keyset = true;
+      this.seekToken = token;
+      this.seekValues = null;
+      return this;
+    }
+
+    /**
+     * Use keyset pagination and retrieve the records that follow the given
+     * values of the ORDER BY columns, in the order in which the columns were
+     * given to {@link #asc(Column[])} and {@link #desc(Column[])}. The value of
+     * the primary key, which is used as the last ordering column, is optional.
+     *
+     * @param values The last seen values of the ordering columns
+     * @return The builder
+     */
+    public Builder<T> seek(Object ... values) {
+      this.keyset = true;
+      this.seekToken = null;
+      this.seekValues = values;
+      return this;
+    }
+
     public <U extends Model> Builder<T> join(Reference<? super T, U> reference, Column<U, ?> ... columns) {
       joins.add(new Join<>(reference, columns));
       return this;
     }
 
     public <U extends Model> Builder<T> join(Join<U> join, Column<U, ?> ... columns) {
-      Collections.addAll(join.fields, columns);
+      join.addFields(columns);
       joins.add(join);
       return this;
     }
@@ -353,8 +835,9 @@ public interface Query<T extends Model> {
     private final Reference<?, ? super T> reference;
     private final Filter<T> filter;
     private final List<Join> joins = new ArrayList<>();
-    private final Set<Column<T, ?>> fields;
+    private Set<Column<T, ?>> fields;
     private final Set<Order> orderBy;
+    private boolean selectIn;
 
     /**
      * Creates a join based on a reference column
@@ -401,6 +884,21 @@ public interface Query<T extends Model> {
       }
     }
 
+    private void addFields(Column<T, ?>[] columns) {
+      if (columns.length == 0) {
+        return;
+      }
+
+      if (fields == null) {
+        fields = new HashSet<>();
+      }
+      for(Column<T, ?> column:columns) {
+        if (column != null) {
+          fields.add(column);
+        }
+      }
+    }
+
     public void asc(Column<? super T, ?> ... columns) {
       orderBy(columns, false);
     }
@@ -433,6 +931,40 @@ public interface Query<T extends Model> {
       return reference;
     }
 
+    /**
+     * Load the records of this join with a separate query for each batch of
+     * the parent records ({@code WHERE fk IN (...)}) instead of joining them
+     * in the parent query. Joining a number of HasMany relations in a single
+     * query creates a cartesian product of all the children, with this
+     * strategy the result size is the sum of the children instead.
+     *
+     * <p>
+     *   The strategy is used only for the {@link Relation.HasMany} joined
+     *   directly to the primary model of the query, the other joins are
+     *   always made within the parent query.
+     * </p>
+     *
+     * @return The join for chaining
+     */
+    public Join<T> selectIn() {
+      this.selectIn = true;
+      return this;
+    }
+
+    public boolean isSelectIn() {
+      return selectIn;
+    }
+
+    /**
+     * The columns of the joined model that need to be retrieved. The primary
+     * key is always retrieved.
+     *
+     * @return The set of columns or {@code null} if all the columns are needed
+     */
+    public Set<Column<T, ?>> getFields() {
+      return fields;
+    }
+
     public List<Join> getJoinChildren() {
       return joins;
     }
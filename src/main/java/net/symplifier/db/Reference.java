@@ -124,6 +124,16 @@ public interface Reference<M extends Model, T extends Model> {
     return j;
   }
 
+  /**
+   * Load the referenced records with a separate query instead of joining
+   *
+   * @return Returns a {@link net.symplifier.db.Query.Join} for chaining joins
+   * @see Query.Join#selectIn()
+   */
+  default Query.Join<T> selectIn() {
+    return new Query.Join<>(this).selectIn();
+  }
+
   default <U extends T> Query.Join<U> as(Class<U> parentClass) {
     return new Query.Join<U>(getSourceType().getSchema().getModelStructure(parentClass), this);
   }
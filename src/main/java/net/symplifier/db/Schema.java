@@ -1,12 +1,21 @@
 package net.symplifier.db;
 
 import net.symplifier.db.annotations.Table;
+import net.symplifier.db.cache.CachePolicy;
+import net.symplifier.db.cache.Invalidation;
+import net.symplifier.db.cache.InvalidationBus;
 import net.symplifier.db.exceptions.DatabaseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The central class for Database management
@@ -14,6 +23,12 @@ import java.util.*;
  * Created by ranjan on 7/27/15.
  */
 public class Schema {
+  public static final Logger LOGGER = LogManager.getLogger(Schema.class);
+
+  /* The number of primary key ranges per thread while warming up a model,
+   * so that an uneven range doesn't keep the other threads idle */
+  private static final int WARM_UP_PARTITIONS = 4;
+
   public static final SimpleDateFormat ISO_8601_DATE_TIME
           = new SimpleDateFormat("YYYY-MM-DD'T'HH:mm:ss'Z'") {{
     this.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -40,6 +55,12 @@ public class Schema {
   /** The driver to be used by this schema */
   private Driver driver;
 
+  /** The bus on which the committed changes are exchanged with the other nodes */
+  private volatile InvalidationBus invalidationBus;
+
+  /** Identifies the messages of this schema on the bus */
+  private final long nodeId = UUID.randomUUID().getMostSignificantBits();
+
   private Schema() {
 
   }
@@ -49,6 +70,21 @@ public class Schema {
   }
 
   public static Schema generate(Generator generator, boolean primary) {
+    return generate(generator, primary, 0);
+  }
+
+  /**
+   * Generate the schema and preload the rows of the models whose cache policy
+   * is flagged warm before the schema is put to use
+   *
+   * @param generator The schema generator
+   * @param primary Whether the schema is the primary schema
+   * @param warmUpThreads The number of threads (and connections) used for
+   *                      preloading, no preloading if 0
+   * @return The schema
+   * @see #warmUp(int)
+   */
+  public static Schema generate(Generator generator, boolean primary, int warmUpThreads) {
     Schema schema;
     if (primary) {
       schema = primarySchema;
@@ -67,13 +103,132 @@ public class Schema {
       throw new DatabaseException("Trying to initialize already initialized schmea", null);
     }
 
+    if (warmUpThreads > 0) {
+      schema.warmUp(warmUpThreads);
+    }
+
     return schema;
   }
 
+  /**
+   * Load all the rows of the models flagged warm (see
+   * {@link CachePolicy#setWarm(boolean)}) into their caches. The models are
+   * loaded one after another, each one split into primary key ranges that are
+   * loaded in parallel on the given number of threads, each thread using a
+   * session of its own. The number of rows and the time taken are logged for
+   * every model.
+   *
+   * @param threads The number of threads
+   */
+  public void warmUp(int threads) {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (ModelStructure<? extends Model> structure : allModels.values()) {
+        if (!structure.getCachePolicy().isWarm() || structure.isInterface()) {
+          continue;
+        }
+
+        long start = System.nanoTime();
+        long rows = structure.loadAll(executor, threads * WARM_UP_PARTITIONS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("Warmed up " + structure.getTableName() + " - " + rows + " rows in " + elapsed + " ms"
+                + (structure.isFullyCached() ? ", fully cached" : ""));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Write the row caches of all the models with a version column to a
+   * snapshot file, for restoring them with {@link #loadCacheSnapshot(Path)}
+   * on the next startup
+   *
+   * @param file The snapshot file
+   * @see CacheSnapshot
+   */
+  public void saveCacheSnapshot(Path file) {
+    long start = System.nanoTime();
+    long rows = new CacheSnapshot(this).save(file);
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    LOGGER.info("Saved the cache snapshot " + file + " - " + rows + " rows in " + elapsed + " ms");
+  }
+
+  /**
+   * Restore the row caches from the snapshot file written with
+   * {@link #saveCacheSnapshot(Path)}, to be done before the schema is put to
+   * use. The stale snapshots are ignored.
+   *
+   * @param file The snapshot file
+   * @return The number of rows restored
+   * @see CacheSnapshot
+   */
+  public long loadCacheSnapshot(Path file) {
+    long start = System.nanoTime();
+    long rows = new CacheSnapshot(this).load(file);
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    LOGGER.info("Loaded the cache snapshot " + file + " - " + rows + " rows in " + elapsed + " ms");
+    return rows;
+  }
+
+  /**
+   * Connect the schema to the bus shared by the nodes using the same database.
+   * The rows changed by the commits on this node are published on the bus,
+   * and the rows changed by the other nodes are evicted from the caches here
+   * (refreshed for the fully cached models).
+   *
+   * @param bus The bus
+   */
+  public void setInvalidationBus(InvalidationBus bus) {
+    bus.subscribe(this::onInvalidation);
+    this.invalidationBus = bus;
+  }
+
+  public InvalidationBus getInvalidationBus() {
+    return invalidationBus;
+  }
+
+  /**
+   * Publish the ids of the rows of a table changed by a commit on this node
+   *
+   * @param structure The model of the rows
+   * @param ids The ids of the changed rows
+   */
+  void publishInvalidation(ModelStructure structure, Collection<Long> ids) {
+    InvalidationBus bus = invalidationBus;
+    if (bus != null && !ids.isEmpty()) {
+      bus.publish(new Invalidation(nodeId, structure.getTableName(), ids));
+    }
+  }
+
+  private void onInvalidation(Invalidation message) {
+    if (message.getOrigin() == nodeId) {
+      return;
+    }
+
+    ModelStructure<? extends Model> structure = getModelStructure(message.getTable());
+    if (structure != null && !structure.isInterface()) {
+      structure.invalidate(message.getIds());
+    }
+  }
+
+  /**
+   * All the models registered on this schema
+   *
+   * @return The models, not to be modified
+   */
+  public Collection<ModelStructure<? extends Model>> getModels() {
+    return Collections.unmodifiableCollection(allModels.values());
+  }
+
   private void buildRelationship() {
     for(ModelStructure m:allModels.values()) {
       m.buildRelationship();
     }
+
+    // With all the structures complete, the driver can now prepare them
+    allModels.values().forEach(driver::registerModel);
+    intermediateModels.values().forEach(driver::registerModel);
   }
   /**
    * Creates all the model into the database system
@@ -107,6 +262,21 @@ public class Schema {
     return registerModel(clazz, new Model.DefaultFactory<>(clazz));
   }
 
+  /**
+   * Registers the given Model class with the schema using the given policy
+   * for the row cache instead of the one defined by its {@link Table}
+   * annotation
+   *
+   * @param clazz The Model class to be registered
+   * @param policy The policy of the row cache
+   * @param <T> The type of the Model
+   */
+  public <T extends Model> ModelStructure<T> registerModel(Class<T> clazz, CachePolicy policy) {
+    ModelStructure<T> structure = registerModel(clazz);
+    structure.setCachePolicy(policy);
+    return structure;
+  }
+
   @SuppressWarnings("unchecked")
   public <T extends Model> ModelStructure<T> getModelStructure(Class clazz) {
     return (ModelStructure<T>)allModels.get(clazz);
@@ -143,7 +313,8 @@ public class Schema {
 
     // Let's find out the name of the model as used in the database system
     Table table = clazz.getAnnotation(Table.class);
-    String name = table==null?toDBName(clazz.getSimpleName()):table.value();
+    String name = table==null || table.value().isEmpty()
+            ? toDBName(clazz.getSimpleName()) : table.value();
 
     namedModels.put(name, clazz);
 
@@ -197,6 +368,38 @@ public class Schema {
     return s.get(id);
   }
 
+  /**
+   * Retrieve the records of the model for all the given ids
+   *
+   * @param modelClass The type of the model
+   * @param ids The primary keys of the records
+   * @param <T> The type of the model
+   * @return The records in the order of the ids
+   * @see ModelStructure#getAll(Collection)
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Model> List<T> findAll(Class<T> modelClass, Collection<Long> ids) {
+    ModelStructure<T> s = (ModelStructure<T>)allModels.get(modelClass);
+    return s.getAll(ids);
+  }
+
+  /**
+   * Retrieve the record of the model by the value of a unique column
+   *
+   * @param modelClass The type of the model
+   * @param column The unique column
+   * @param value The value of the column
+   * @param <T> The type of the model
+   * @param <V> The type of the column
+   * @return The record or {@code null}
+   * @see ModelStructure#findBy(Column, Object)
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Model, V> T findBy(Class<T> modelClass, Column<? super T, V> column, V value) {
+    ModelStructure<T> s = (ModelStructure<T>)allModels.get(modelClass);
+    return s.findBy(column, value);
+  }
+
 
   // interceptor implementation
   private class InterceptorMap {
@@ -407,7 +610,15 @@ public class Schema {
 //  }
 
   public <T extends Model> Query<T> createQuery(Query.Builder<T> builder) {
-    return getDriver().createQuery(builder);
+    // The queries on the indexed columns of the fully cached models are
+    // answered from the memory
+    return MemoryQuery.wrap(builder, getDriver().createQuery(builder));
+  }
+
+  public <T extends Model> Query.Aggregate createAggregate(Query.Builder<T> builder,
+                                                           List<Column> groupBy,
+                                                           List<Query.AggregateColumn> aggregates) {
+    return getDriver().createAggregate(builder, groupBy, aggregates);
   }
 
   /**
@@ -0,0 +1,92 @@
+package net.symplifier.db;
+
+import net.symplifier.db.exceptions.DatabaseException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The opaque continuation token used for keyset pagination. The token carries
+ * the values of the ordering columns of the last record of a page, encoded
+ * as a JSON array in URL safe base64, so that it could be handed out to the
+ * clients as is.
+ */
+public final class SeekToken {
+
+  private SeekToken() {
+  }
+
+  /**
+   * Encode the values of the ordering columns into a token
+   *
+   * @param values The values of the ordering columns of the last record
+   * @return The continuation token
+   */
+  public static String encode(Object[] values) {
+    JSONArray array = new JSONArray();
+    for(Object value:values) {
+      if (value == null) {
+        array.put(JSONObject.NULL);
+      } else if (value instanceof Date) {
+        array.put(((Date) value).getTime());
+      } else if (value instanceof byte[]) {
+        array.put(Base64.getEncoder().encodeToString((byte[]) value));
+      } else {
+        array.put(value);
+      }
+    }
+
+    byte[] json = array.toString().getBytes(StandardCharsets.UTF_8);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+  }
+
+  /**
+   * Decode the token into the values of the given ordering columns
+   *
+   * @param token The continuation token
+   * @param columns The ordering columns of the query
+   * @return The values of the columns in the order of the columns
+   */
+  public static Object[] decode(String token, List<Column> columns) {
+    try {
+      String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+      JSONArray array = new JSONArray(json);
+      if (array.length() != columns.size()) {
+        throw new DatabaseException("Continuation token doesn't match the query ordering", null);
+      }
+
+      Object[] values = new Object[array.length()];
+      for(int i=0; i<values.length; ++i) {
+        values[i] = array.isNull(i) ? null : convert(array, i, columns.get(i).getValueType());
+      }
+      return values;
+    } catch(IllegalArgumentException | JSONException e) {
+      throw new DatabaseException("Invalid continuation token", e);
+    }
+  }
+
+  private static Object convert(JSONArray array, int index, Class type) {
+    if (type == Long.class) {
+      return array.getLong(index);
+    } else if (type == Integer.class) {
+      return array.getInt(index);
+    } else if (type == Double.class) {
+      return array.getDouble(index);
+    } else if (type == Float.class) {
+      return (float)array.getDouble(index);
+    } else if (type == Boolean.class) {
+      return array.getBoolean(index);
+    } else if (type == Date.class) {
+      return new Date(array.getLong(index));
+    } else if (type == byte[].class) {
+      return Base64.getDecoder().decode(array.getString(index));
+    } else {
+      return array.getString(index);
+    }
+  }
+}
@@ -1,15 +1,55 @@
 package net.symplifier.db.annotations;
 
+import net.symplifier.db.cache.RowCacheProvider;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
+ * The table definition of a model. Apart from the name of the table, it
+ * defines the policy of the row cache of the model, see
+ * {@link net.symplifier.db.cache.CachePolicy}
+ *
  * Created by ranjan on 7/27/15.
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface Table {
-  public String value();
+  /** The name of the table, inferred from the class name if empty */
+  public String value() default "";
+
+  /** Set to {@code false} to not cache the rows of the model */
+  public boolean cache() default true;
+
+  /** The maximum number of rows cached */
+  public long cacheSize() default -1;
+
+  /** The maximum total weight (approximate bytes) of the rows cached */
+  public long cacheWeight() default -1;
+
+  /** Seconds after which a cached row expires since it was cached */
+  public long expireAfterWrite() default -1;
+
+  /** Seconds after which a cached row expires since it was last accessed */
+  public long expireAfterAccess() default -1;
+
+  /** Seconds after which a cached row is reloaded from the database */
+  public long refreshAfterWrite() default -1;
+
+  /** Megabytes of rows kept outside the java heap, behind the regular cache */
+  public long offHeapSize() default -1;
+
+  /** Load all the rows in the cache when the schema is warmed up */
+  public boolean warm() default false;
+
+  /** Keep the cached rows through soft references */
+  public boolean softValues() default false;
+
+  /**
+   * The cache implementation, for example {@code TinyLfuRowCache.Provider.class},
+   * the default provider is used when not given
+   */
+  public Class<? extends RowCacheProvider> cacheProvider() default RowCacheProvider.class;
 }
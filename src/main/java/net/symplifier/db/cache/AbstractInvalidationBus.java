@@ -0,0 +1,38 @@
+package net.symplifier.db.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The listener handling common to the {@link InvalidationBus} implementations
+ */
+public abstract class AbstractInvalidationBus implements InvalidationBus {
+  protected static final Logger LOGGER = LogManager.getLogger(InvalidationBus.class);
+
+  private final List<Consumer<Invalidation>> listeners = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void subscribe(Consumer<Invalidation> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Hand over the received message to all the listeners. A failing listener
+   * doesn't keep the message from the others.
+   *
+   * @param message The message received
+   */
+  protected void deliver(Invalidation message) {
+    for(Consumer<Invalidation> listener:listeners) {
+      try {
+        listener.accept(message);
+      } catch (RuntimeException e) {
+        LOGGER.error("Error while handling " + message, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package net.symplifier.db.cache;
+
+import com.google.common.cache.Weigher;
+import net.symplifier.db.ModelRow;
+import net.symplifier.db.annotations.Table;
+import net.symplifier.db.exceptions.DatabaseException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The policy of the row cache of a model. The policy is defined either through
+ * the {@link Table} annotation of the model or while registering the model
+ * with the {@link net.symplifier.db.Schema}.
+ *
+ * <pre>
+ *   schema.registerModel(EventLog.class, new CachePolicy()
+ *           .setMaximumSize(50000)
+ *           .setExpireAfterAccess(10, TimeUnit.MINUTES));
+ * </pre>
+ */
+public class CachePolicy {
+  /** The number of rows cached when no limit is given */
+  public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+  private boolean enabled = true;
+  private long maximumSize = -1;
+  private long maximumWeight = -1;
+  private Weigher<Long, ModelRow> weigher;
+  private long expireAfterWrite = -1;
+  private long expireAfterAccess = -1;
+  private long refreshAfterWrite = -1;
+  private boolean softValues = false;
+  private RowCacheProvider provider;
+  private long offHeapSize = -1;
+  private boolean warm = false;
+
+  /**
+   * A policy that doesn't cache any row. The rows are always retrieved from
+   * the database.
+   *
+   * @return The cache policy
+   */
+  public static CachePolicy none() {
+    CachePolicy policy = new CachePolicy();
+    policy.enabled = false;
+    return policy;
+  }
+
+  /**
+   * Creates the policy defined by the annotation of the model
+   *
+   * @param table The annotation on the model
+   * @return The cache policy
+   */
+  public static CachePolicy of(Table table) {
+    CachePolicy policy = new CachePolicy();
+    if (table == null) {
+      return policy;
+    }
+
+    policy.enabled = table.cache();
+    policy.maximumSize = table.cacheSize();
+    policy.maximumWeight = table.cacheWeight();
+    if (table.expireAfterWrite() > 0) {
+      policy.setExpireAfterWrite(table.expireAfterWrite(), TimeUnit.SECONDS);
+    }
+    if (table.expireAfterAccess() > 0) {
+      policy.setExpireAfterAccess(table.expireAfterAccess(), TimeUnit.SECONDS);
+    }
+    if (table.refreshAfterWrite() > 0) {
+      policy.setRefreshAfterWrite(table.refreshAfterWrite(), TimeUnit.SECONDS);
+    }
+    policy.softValues = table.softValues();
+    policy.warm = table.warm();
+    if (table.offHeapSize() > 0) {
+      policy.setOffHeapSize(table.offHeapSize() * 1024 * 1024);
+    }
+    if (table.cacheProvider() != RowCacheProvider.class) {
+      try {
+        policy.provider = table.cacheProvider().getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new DatabaseException("Cannot create the cache provider " + table.cacheProvider(), e);
+      }
+    }
+    return policy;
+  }
+
+  /**
+   * Set the maximum number of rows kept in the cache
+   *
+   * @param size The number of rows
+   * @return self chaining
+   */
+  public CachePolicy setMaximumSize(long size) {
+    this.maximumSize = size;
+    return this;
+  }
+
+  /**
+   * Limit the cache by the total weight of the rows instead of their number.
+   * The weight of a row is its approximate size in bytes unless a different
+   * weigher is provided with {@link #setWeigher(Weigher)}
+   *
+   * @param weight The maximum total weight
+   * @return self chaining
+   */
+  public CachePolicy setMaximumWeight(long weight) {
+    this.maximumWeight = weight;
+    return this;
+  }
+
+  public CachePolicy setWeigher(Weigher<Long, ModelRow> weigher) {
+    this.weigher = weigher;
+    return this;
+  }
+
+  public CachePolicy setExpireAfterWrite(long duration, TimeUnit unit) {
+    this.expireAfterWrite = unit.toNanos(duration);
+    return this;
+  }
+
+  public CachePolicy setExpireAfterAccess(long duration, TimeUnit unit) {
+    this.expireAfterAccess = unit.toNanos(duration);
+    return this;
+  }
+
+  /**
+   * Reload the rows from the database once the given duration has passed
+   * since they were cached. The reload happens when the row is requested, the
+   * old row is served if the record could not be reloaded.
+   *
+   * @param duration The duration after which the row is reloaded
+   * @param unit The unit of the duration
+   * @return self chaining
+   */
+  public CachePolicy setRefreshAfterWrite(long duration, TimeUnit unit) {
+    this.refreshAfterWrite = unit.toNanos(duration);
+    return this;
+  }
+
+  /**
+   * Keep the rows through soft references, allowing the garbage collector to
+   * reclaim them under memory pressure
+   *
+   * @param softValues {@code true} to use soft references
+   * @return self chaining
+   */
+  public CachePolicy setSoftValues(boolean softValues) {
+    this.softValues = softValues;
+    return this;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  public long getMaximumWeight() {
+    return maximumWeight;
+  }
+
+  public Weigher<Long, ModelRow> getWeigher() {
+    return weigher;
+  }
+
+  public long getExpireAfterWrite() {
+    return expireAfterWrite;
+  }
+
+  public long getExpireAfterAccess() {
+    return expireAfterAccess;
+  }
+
+  public long getRefreshAfterWrite() {
+    return refreshAfterWrite;
+  }
+
+  public boolean isSoftValues() {
+    return softValues;
+  }
+
+  /**
+   * Whether the rows expire after a duration
+   *
+   * @return {@code true} if any of the expiry is set
+   */
+  public boolean isExpiring() {
+    return expireAfterWrite > 0 || expireAfterAccess > 0;
+  }
+
+  /**
+   * Use a different cache implementation than the default one, see
+   * {@link RowCacheProvider#getDefault()}
+   *
+   * @param provider The cache provider
+   * @return self chaining
+   */
+  public CachePolicy setProvider(RowCacheProvider provider) {
+    this.provider = provider;
+    return this;
+  }
+
+  /**
+   * Keep the rows that don't fit in the (on heap) cache outside the java heap,
+   * see {@link OffHeapRowCache}. The limits set on the policy apply to the on
+   * heap cache which then acts as the first level in front of the off heap
+   * store.
+   *
+   * @param bytes The maximum number of bytes kept off heap
+   * @return self chaining
+   */
+  public CachePolicy setOffHeapSize(long bytes) {
+    this.offHeapSize = bytes;
+    return this;
+  }
+
+  public long getOffHeapSize() {
+    return offHeapSize;
+  }
+
+  /**
+   * Load all the rows of the model in the cache when the schema is warmed up,
+   * see {@link net.symplifier.db.Schema#warmUp(int)}
+   *
+   * @param warm {@code true} to preload the rows
+   * @return self chaining
+   */
+  public CachePolicy setWarm(boolean warm) {
+    this.warm = warm;
+    return this;
+  }
+
+  public boolean isWarm() {
+    return warm;
+  }
+
+  public RowCacheProvider getProvider() {
+    if (!enabled) {
+      return RowCacheProvider.NONE;
+    }
+    return provider == null ? RowCacheProvider.getDefault() : provider;
+  }
+
+  /**
+   * Create the cache as per the policy
+   *
+   * @param loader The loader used for reading through the cache misses
+   * @param <K> The type of the key
+   * @param <V> The type of the value
+   * @return The cache
+   */
+  public <K, V> RowCache<K, V> create(Function<? super K, ? extends V> loader) {
+    return getProvider().create(this, loader);
+  }
+
+  /**
+   * The approximate size of the row in bytes
+   *
+   * @param row The row
+   * @return The number of bytes
+   */
+  public static int weigh(ModelRow row) {
+    Object[] data = row.getData();
+    int size = 32 + 8 * data.length;
+    for(Object value:data) {
+      if (value instanceof String) {
+        size += 40 + 2 * ((String) value).length();
+      } else if (value instanceof byte[]) {
+        size += 16 + ((byte[]) value).length;
+      } else if (value != null) {
+        size += 16;
+      }
+    }
+    return size;
+  }
+}
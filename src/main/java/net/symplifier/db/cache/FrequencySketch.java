@@ -0,0 +1,90 @@
+package net.symplifier.db.cache;
+
+/**
+ * A count-min sketch estimating how often the keys have been used, with four
+ * bit counters packed into longs. The counters are halved periodically so that
+ * the keys that were popular once don't stay in the cache forever.
+ *
+ * Not thread safe, used under the eviction lock of {@link TinyLfuRowCache}.
+ */
+class FrequencySketch {
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long[] SEEDS = {
+          0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+
+  private final long[] table;
+  private final int tableMask;
+  private final long sampleSize;
+  private long additions;
+
+  FrequencySketch(long maximumSize) {
+    int capacity = (int) Math.min(Math.max(maximumSize, 16), 1 << 24);
+    int length = Integer.highestOneBit(capacity - 1) << 1;
+    this.table = new long[length];
+    this.tableMask = length - 1;
+    this.sampleSize = 10L * Math.max(maximumSize, 16);
+  }
+
+  /**
+   * The estimated number of times the key has been used, at most 15
+   *
+   * @param key The key
+   * @return The estimated frequency
+   */
+  int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int frequency = Integer.MAX_VALUE;
+    for(int i=0; i<4; ++i) {
+      int index = indexOf(hash, i);
+      int offset = counterOffset(hash, i);
+      int count = (int) ((table[index] >>> offset) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  void increment(Object key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for(int i=0; i<4; ++i) {
+      int index = indexOf(hash, i);
+      int offset = counterOffset(hash, i);
+      long mask = 0xfL << offset;
+      if ((table[index] & mask) != mask) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+
+    if (added && ++additions >= sampleSize) {
+      reset();
+    }
+  }
+
+  /* Halves all the counters */
+  private void reset() {
+    for(int i=0; i<table.length; ++i) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions = additions / 2;
+  }
+
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return ((int) h) & tableMask;
+  }
+
+  /* Each long holds sixteen counters, four for each row */
+  private static int counterOffset(int hash, int row) {
+    int counter = (row << 2) + ((hash >>> (row << 3)) & 3);
+    return counter << 2;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -0,0 +1,140 @@
+package net.symplifier.db.cache;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.symplifier.db.ModelRow;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The row cache backed by the Guava cache. Supports every option of the
+ * {@link CachePolicy}.
+ */
+public class GuavaRowCache<K, V> implements RowCache<K, V> {
+
+  private final Cache<K, V> cache;
+  private final LoadingCache<K, V> loadingCache;
+
+  @SuppressWarnings("unchecked")
+  public GuavaRowCache(CachePolicy policy, Function<? super K, ? extends V> loader) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+
+    if (policy.getMaximumWeight() > 0) {
+      builder.maximumWeight(policy.getMaximumWeight());
+      Weigher weigher = policy.getWeigher();
+      if (weigher == null) {
+        weigher = (Weigher<Object, ModelRow>) (k, v) -> CachePolicy.weigh(v);
+      }
+      builder.weigher(weigher);
+    } else if (policy.getMaximumSize() >= 0) {
+      builder.maximumSize(policy.getMaximumSize());
+    } else if (!policy.isExpiring() && !policy.isSoftValues()) {
+      // Without any other means of eviction, the cache is always bounded
+      builder.maximumSize(CachePolicy.DEFAULT_MAXIMUM_SIZE);
+    }
+
+    if (policy.getExpireAfterWrite() > 0) {
+      builder.expireAfterWrite(policy.getExpireAfterWrite(), TimeUnit.NANOSECONDS);
+    }
+    if (policy.getExpireAfterAccess() > 0) {
+      builder.expireAfterAccess(policy.getExpireAfterAccess(), TimeUnit.NANOSECONDS);
+    }
+    if (policy.getRefreshAfterWrite() > 0 && loader != null) {
+      builder.refreshAfterWrite(policy.getRefreshAfterWrite(), TimeUnit.NANOSECONDS);
+    }
+    if (policy.isSoftValues()) {
+      builder.softValues();
+    }
+
+    if (loader == null) {
+      this.cache = builder.build();
+      this.loadingCache = null;
+    } else {
+      this.loadingCache = builder.build(new CacheLoader<K, V>() {
+        @Override
+        public V load(K key) throws Exception {
+          // A null value is reported as InvalidCacheLoadException
+          return loader.apply(key);
+        }
+      });
+      this.cache = loadingCache;
+    }
+  }
+
+  @Override
+  public V get(K key) {
+    if (loadingCache == null) {
+      return cache.getIfPresent(key);
+    }
+
+    try {
+      return loadingCache.get(key);
+    } catch (CacheLoader.InvalidCacheLoadException e) {
+      return null;
+    } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  @Override
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    try {
+      return cache.get(key, () -> loader.apply(key));
+    } catch (CacheLoader.InvalidCacheLoadException e) {
+      return null;
+    } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  @Override
+  public V getIfPresent(K key) {
+    return cache.getIfPresent(key);
+  }
+
+  @Override
+  public void put(K key, V value) {
+    cache.put(key, value);
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    return cache.asMap().replace(key, oldValue, newValue);
+  }
+
+  @Override
+  public void invalidate(K key) {
+    cache.invalidate(key);
+  }
+
+  @Override
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    cache.asMap().forEach(action);
+  }
+
+  @Override
+  public long size() {
+    return cache.size();
+  }
+
+  public static class Provider implements RowCacheProvider {
+    @Override
+    public <K, V> RowCache<K, V> create(CachePolicy policy, Function<? super K, ? extends V> loader) {
+      return new GuavaRowCache<>(policy, loader);
+    }
+  }
+}
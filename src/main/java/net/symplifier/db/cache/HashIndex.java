@@ -0,0 +1,22 @@
+package net.symplifier.db.cache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The index for equality lookups
+ */
+public class HashIndex extends MemoryIndex {
+  private final ConcurrentHashMap<Object, Set<Long>> entries = new ConcurrentHashMap<>();
+
+  @Override
+  protected ConcurrentMap<Object, Set<Long>> getEntries() {
+    return entries;
+  }
+
+  @Override
+  public Type getType() {
+    return Type.HASH;
+  }
+}
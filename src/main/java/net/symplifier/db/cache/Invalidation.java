@@ -0,0 +1,147 @@
+package net.symplifier.db.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The message published on the {@link InvalidationBus} when the rows of a
+ * table are changed by a commit. The message carries the table name and the
+ * ids of the rows, along with the node that made the change so that a node
+ * could ignore its own messages.
+ *
+ * <pre>
+ *   [magic][origin][table name length][table name][number of ids][ids]
+ * </pre>
+ *
+ * The ids are sorted and encoded as variable length differences, so the ids
+ * that are close to each other take a byte or two each.
+ */
+public final class Invalidation {
+  private static final int MAGIC = 0x53594d49;     // SYMI
+
+  private final long origin;
+  private final String table;
+  private final long[] ids;
+
+  public Invalidation(long origin, String table, Collection<Long> ids) {
+    this(origin, table, ids.stream().mapToLong(Long::longValue).sorted().toArray());
+  }
+
+  private Invalidation(long origin, String table, long[] ids) {
+    this.origin = origin;
+    this.table = table;
+    this.ids = ids;
+  }
+
+  /**
+   * The node on which the rows were changed
+   *
+   * @return The node id
+   */
+  public long getOrigin() {
+    return origin;
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  /**
+   * The ids of the changed rows in ascending order
+   *
+   * @return The ids, not to be modified
+   */
+  public long[] getIds() {
+    return ids;
+  }
+
+  /**
+   * Split the message into messages with at most the given number of ids, for
+   * the transports that limit the size of a message
+   *
+   * @param maxIds The maximum number of ids in a message
+   * @return The messages
+   */
+  public List<Invalidation> split(int maxIds) {
+    if (ids.length <= maxIds) {
+      return Collections.singletonList(this);
+    }
+
+    List<Invalidation> res = new ArrayList<>();
+    for(int i=0; i<ids.length; i += maxIds) {
+      res.add(new Invalidation(origin, table, Arrays.copyOfRange(ids, i, Math.min(ids.length, i + maxIds))));
+    }
+    return res;
+  }
+
+  public byte[] encode() {
+    byte[] name = table.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(22 + name.length + ids.length * 10);
+    buffer.putInt(MAGIC);
+    buffer.putLong(origin);
+    buffer.putShort((short) name.length);
+    buffer.put(name);
+    buffer.putInt(ids.length);
+
+    long prev = 0;
+    for(long id:ids) {
+      long v = id - prev;
+      while ((v & ~0x7fL) != 0) {
+        buffer.put((byte) ((v & 0x7f) | 0x80));
+        v >>>= 7;
+      }
+      buffer.put((byte) v);
+      prev = id;
+    }
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  /**
+   * Decode the message
+   *
+   * @param bytes The buffer
+   * @param offset The offset of the message in the buffer
+   * @param length The length of the message
+   * @return The message or {@code null} if the bytes are not a message
+   */
+  public static Invalidation decode(byte[] bytes, int offset, int length) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+    try {
+      if (buffer.getInt() != MAGIC) {
+        return null;
+      }
+      long origin = buffer.getLong();
+      byte[] name = new byte[buffer.getShort() & 0xffff];
+      buffer.get(name);
+
+      long[] ids = new long[buffer.getInt()];
+      long prev = 0;
+      for(int i=0; i<ids.length; ++i) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = buffer.get();
+          v |= (long) (b & 0x7f) << shift;
+          shift += 7;
+        } while ((b & 0x80) != 0);
+        prev += v;
+        ids[i] = prev;
+      }
+      return new Invalidation(origin, new String(name, StandardCharsets.UTF_8), ids);
+    } catch (RuntimeException e) {
+      // Truncated or corrupted
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Invalidation[" + table + ", " + ids.length + " rows]";
+  }
+}
@@ -0,0 +1,46 @@
+package net.symplifier.db.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * The channel through which the nodes sharing a database let each other know
+ * about the rows changed by their commits, so that the cached copies of those
+ * rows are evicted (or refreshed) on the other nodes. The implementations
+ * available out of the box are
+ * <ul>
+ *   <li>{@link LoopbackBus} - Within the same process, for the tests</li>
+ *   <li>{@link MulticastBus} - UDP multicast on the local network</li>
+ *   <li>{@link TcpBus} - TCP connections to a fixed list of peers</li>
+ * </ul>
+ *
+ * A message published is delivered to the listeners of every node, including
+ * the publishing node in most of the cases, the listener is expected to skip
+ * the messages of its own origin.
+ */
+public interface InvalidationBus extends AutoCloseable {
+
+  /**
+   * Send the message to all the nodes. The failures are logged, never
+   * thrown, the commit that publishes the message has already completed.
+   * The message is published from the committing thread, the transports
+   * that could block (connecting to a peer) send it from a background
+   * thread instead.
+   *
+   * @param message The message
+   */
+  void publish(Invalidation message);
+
+  /**
+   * Register a listener for the messages received. The listener is invoked on
+   * the thread receiving the messages.
+   *
+   * @param listener The listener
+   */
+  void subscribe(Consumer<Invalidation> listener);
+
+  /**
+   * Stop receiving and release the resources of the bus
+   */
+  @Override
+  void close();
+}
@@ -0,0 +1,68 @@
+package net.symplifier.db.cache;
+
+import com.google.common.base.Throwables;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Loads the values missing in a cache, making the concurrent misses on the
+ * same key wait for a single load instead of hitting the database for each of
+ * them.
+ */
+class Loader<K, V> {
+  private final Function<? super K, ? extends V> defaultLoader;
+
+  /* The loads in progress */
+  private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+  Loader(Function<? super K, ? extends V> defaultLoader) {
+    this.defaultLoader = defaultLoader;
+  }
+
+  Function<? super K, ? extends V> getDefault() {
+    return defaultLoader;
+  }
+
+  /**
+   * Load the value for the given key
+   *
+   * @param key The key
+   * @param loader The loader for the value
+   * @param store Stores the loaded value in the cache if it is not already
+   *              there, returning the value found in the cache if any
+   * @return The value, {@code null} if the loader couldn't find it
+   */
+  V load(K key, Function<? super K, ? extends V> loader, BiFunction<K, V, V> store) {
+    FutureTask<V> task = new FutureTask<>(() -> {
+      V value = loader.apply(key);
+      if (value == null) {
+        return null;
+      }
+      V existing = store.apply(key, value);
+      return existing == null ? value : existing;
+    });
+
+    FutureTask<V> running = loading.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        loading.remove(key, task);
+      }
+      running = task;
+    }
+
+    try {
+      return running.get();
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package net.symplifier.db.cache;
+
+import java.util.Arrays;
+
+/**
+ * A map with primitive long keys using open addressing with linear probing,
+ * keeping the keys and the values in two parallel arrays without an entry
+ * object or a boxed key for every mapping. The removal shifts the following
+ * entries back instead of leaving tombstones, so the lookups never slow down
+ * with the removals.
+ *
+ * The values cannot be null, a null value marks an empty slot. The map is not
+ * thread safe.
+ *
+ * @param <V> The type of the values
+ */
+public class LongMap<V> {
+  private static final int DEFAULT_CAPACITY = 16;
+  /* Keeps the probe sequences short */
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+  private int threshold;
+
+  public LongMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a map for the given number of entries without resizing
+   *
+   * @param expectedSize The number of entries expected
+   */
+  public LongMap(int expectedSize) {
+    allocate(tableSize(expectedSize));
+  }
+
+  private static int tableSize(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    return Math.max(DEFAULT_CAPACITY, capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    for(int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return (V) values[i];
+      }
+    }
+    return null;
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Map the key to the value
+   *
+   * @param key The key
+   * @param value The value, not null
+   * @return The previous value or {@code null} if the key was not mapped
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("The value cannot be null");
+    }
+
+    int i = slot(key);
+    for(; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        V old = (V) values[i];
+        values[i] = value;
+        return old;
+      }
+    }
+
+    keys[i] = key;
+    values[i] = value;
+    if (++size > threshold) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * Remove the mapping of the key
+   *
+   * @param key The key
+   * @return The value removed or {@code null} if the key was not mapped
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int i = slot(key);
+    while (values[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (values[i] == null) {
+      return null;
+    }
+
+    V old = (V) values[i];
+
+    // Shift back the entries following in the probe sequence which would
+    // otherwise be unreachable with the slot emptied
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (values[j] == null) {
+        break;
+      }
+
+      int home = slot(keys[j]);
+      boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+      if (!reachable) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        i = j;
+      }
+    }
+
+    values[i] = null;
+    size -= 1;
+    return old;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+
+    for(int i=0; i<oldValues.length; ++i) {
+      if (oldValues[i] != null) {
+        int j = slot(oldKeys[i]);
+        while (values[j] != null) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package net.symplifier.db.cache;
+
+/**
+ * The bus within a single process, the messages are delivered to the
+ * listeners on the publishing thread. Sharing the bus between the schemas of
+ * the same process mimics the nodes of a cluster in the tests.
+ */
+public class LoopbackBus extends AbstractInvalidationBus {
+
+  @Override
+  public void publish(Invalidation message) {
+    deliver(message);
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,90 @@
+package net.symplifier.db.cache;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in memory secondary index over the cached rows of a model, mapping the
+ * values of a column to the primary keys of the rows. The index is useful
+ * only when all the rows of the model are in the cache, in which case the
+ * queries filtering on the indexed columns are answered without the database.
+ *
+ * <p>
+ *   A {@link Type#HASH} index supports the equality lookups only, a
+ *   {@link Type#SORTED} index supports the range lookups as well and needs
+ *   the column values to be {@link Comparable}.
+ * </p>
+ */
+public abstract class MemoryIndex {
+
+  public enum Type {
+    HASH,
+    SORTED
+  }
+
+  /* The ids of the rows whose column value is null */
+  private final Set<Long> nulls = ConcurrentHashMap.newKeySet();
+
+  public static MemoryIndex create(Type type) {
+    return type == Type.SORTED ? new SortedIndex() : new HashIndex();
+  }
+
+  protected abstract ConcurrentMap<Object, Set<Long>> getEntries();
+
+  public abstract Type getType();
+
+  public void add(Long id, Object value) {
+    if (value == null) {
+      nulls.add(id);
+    } else {
+      getEntries().computeIfAbsent(value, k -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+  }
+
+  public void remove(Long id, Object value) {
+    if (value == null) {
+      nulls.remove(id);
+    } else {
+      getEntries().computeIfPresent(value, (k, ids) -> {
+        ids.remove(id);
+        return ids.isEmpty() ? null : ids;
+      });
+    }
+  }
+
+  /**
+   * Move the row from the old value to the new value
+   *
+   * @param id The primary key of the row
+   * @param oldValue The previous value of the column
+   * @param newValue The current value of the column
+   */
+  public void update(Long id, Object oldValue, Object newValue) {
+    if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+      remove(id, oldValue);
+      add(id, newValue);
+    }
+  }
+
+  /**
+   * The ids of the rows having the given value
+   *
+   * @param value The column value, {@code null} for the rows without value
+   * @return The ids, not to be modified
+   */
+  public Set<Long> get(Object value) {
+    if (value == null) {
+      return Collections.unmodifiableSet(nulls);
+    }
+
+    Set<Long> ids = getEntries().get(value);
+    return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+  }
+
+  public void clear() {
+    nulls.clear();
+    getEntries().clear();
+  }
+}
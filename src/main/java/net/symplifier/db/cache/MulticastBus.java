@@ -0,0 +1,115 @@
+package net.symplifier.db.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+
+/**
+ * The bus over UDP multicast, every node joins the same group and port. The
+ * large messages are split so that each one fits in a datagram.
+ *
+ * <p>
+ *   The datagrams are not guaranteed to be delivered, a lost message leaves
+ *   the stale rows in the cache of the node that missed it. The models that
+ *   cannot tolerate it should keep an expiry in their cache policy as well, or
+ *   use the {@link TcpBus}.
+ * </p>
+ */
+public class MulticastBus extends AbstractInvalidationBus {
+  /* Keeps the worst case message (10 bytes an id) within a datagram */
+  private static final int MAX_IDS = 4096;
+  private static final int MAX_DATAGRAM = 65507;
+
+  private final InetAddress group;
+  private final int port;
+  private final InetSocketAddress groupAddress;
+  private final NetworkInterface networkInterface;
+  private final MulticastSocket socket;
+  private final Thread receiver;
+  private volatile boolean closed;
+
+  /**
+   * Join the multicast group and start receiving
+   *
+   * @param group The multicast group address
+   * @param port The port
+   * @param ttl The number of hops the messages are allowed to travel
+   * @throws IOException if the group could not be joined
+   */
+  public MulticastBus(InetAddress group, int port, int ttl) throws IOException {
+    this(group, port, ttl, null);
+  }
+
+  /**
+   * Join the multicast group on the given network interface and start
+   * receiving
+   *
+   * @param group The multicast group address
+   * @param port The port
+   * @param ttl The number of hops the messages are allowed to travel
+   * @param networkInterface The interface on which the group is joined,
+   *                         {@code null} for the default interface
+   * @throws IOException if the group could not be joined
+   */
+  public MulticastBus(InetAddress group, int port, int ttl, NetworkInterface networkInterface) throws IOException {
+    this.group = group;
+    this.port = port;
+    this.groupAddress = new InetSocketAddress(group, port);
+    this.networkInterface = networkInterface;
+    this.socket = new MulticastSocket(port);
+    this.socket.setTimeToLive(ttl);
+    this.socket.joinGroup(groupAddress, networkInterface);
+
+    this.receiver = new Thread(this::receive, "MulticastBus-" + group.getHostAddress() + ":" + port);
+    this.receiver.setDaemon(true);
+    this.receiver.start();
+  }
+
+  @Override
+  public void publish(Invalidation message) {
+    for(Invalidation part:message.split(MAX_IDS)) {
+      byte[] data = part.encode();
+      try {
+        socket.send(new DatagramPacket(data, data.length, group, port));
+      } catch (IOException e) {
+        LOGGER.error("Could not publish " + part, e);
+      }
+    }
+  }
+
+  private void receive() {
+    byte[] buffer = new byte[MAX_DATAGRAM];
+    while (!closed) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (SocketException e) {
+        // Closed
+        break;
+      } catch (IOException e) {
+        LOGGER.error("Error while receiving the invalidations", e);
+        continue;
+      }
+
+      Invalidation message = Invalidation.decode(packet.getData(), packet.getOffset(), packet.getLength());
+      if (message != null) {
+        deliver(message);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      socket.leaveGroup(groupAddress, networkInterface);
+    } catch (IOException e) {
+      LOGGER.warn("Could not leave the multicast group", e);
+    }
+    socket.close();
+  }
+}
@@ -0,0 +1,65 @@
+package net.symplifier.db.cache;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The row cache that doesn't cache anything, every retrieval goes to the
+ * loader. Used by {@link CachePolicy#none()}.
+ */
+public class NoRowCache<K, V> implements RowCache<K, V> {
+
+  private final Function<? super K, ? extends V> loader;
+
+  public NoRowCache(Function<? super K, ? extends V> loader) {
+    this.loader = loader;
+  }
+
+  @Override
+  public V get(K key) {
+    return loader == null ? null : loader.apply(key);
+  }
+
+  @Override
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    return loader.apply(key);
+  }
+
+  @Override
+  public V getIfPresent(K key) {
+    return null;
+  }
+
+  @Override
+  public void put(K key, V value) {
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    return false;
+  }
+
+  @Override
+  public void invalidate(K key) {
+  }
+
+  @Override
+  public void invalidateAll() {
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+  }
+
+  @Override
+  public long size() {
+    return 0;
+  }
+
+  public static class Provider implements RowCacheProvider {
+    @Override
+    public <K, V> RowCache<K, V> create(CachePolicy policy, Function<? super K, ? extends V> loader) {
+      return new NoRowCache<>(loader);
+    }
+  }
+}
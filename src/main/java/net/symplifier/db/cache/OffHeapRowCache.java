@@ -0,0 +1,143 @@
+package net.symplifier.db.cache;
+
+import net.symplifier.db.ModelRow;
+import net.symplifier.db.ModelRowCodec;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A two level row cache. The first level is a regular on heap cache created
+ * as per the {@link CachePolicy} (normally kept small), the second level keeps
+ * the encoded rows in an {@link OffHeapStore}. A row missing in the first level
+ * is decoded from the second level before going to the database.
+ *
+ * <p>
+ *   Every completely loaded row that enters the cache is written to the second
+ *   level as well, the partially loaded rows stay in the first level only.
+ * </p>
+ */
+public class OffHeapRowCache implements RowCache<Long, ModelRow> {
+
+  private final RowCache<Long, ModelRow> heap;
+  private final OffHeapStore store;
+  private final ModelRowCodec codec;
+
+  public OffHeapRowCache(CachePolicy policy, ModelRowCodec codec, Function<Long, ModelRow> loader) {
+    this.codec = codec;
+    this.store = new OffHeapStore(policy.getOffHeapSize(), OffHeapStore.DEFAULT_SLAB_SIZE);
+    this.heap = policy.getProvider().create(policy, id -> {
+      ModelRow row = getOffHeap(id);
+      if (row == null) {
+        row = loader.apply(id);
+        store(id, row);
+      }
+      return row;
+    });
+  }
+
+  private ModelRow getOffHeap(Long id) {
+    return store.get(id, codec::decode);
+  }
+
+  private void store(Long id, ModelRow row) {
+    if (row == null || row.isPartial()) {
+      store.remove(id);
+    } else {
+      store.put(id, codec.encode(row));
+    }
+  }
+
+  @Override
+  public ModelRow get(Long id) {
+    return heap.get(id);
+  }
+
+  @Override
+  public ModelRow get(Long id, Function<? super Long, ? extends ModelRow> loader) {
+    return heap.get(id, key -> {
+      ModelRow row = getOffHeap(key);
+      if (row == null) {
+        row = loader.apply(key);
+        store(key, row);
+      }
+      return row;
+    });
+  }
+
+  @Override
+  public ModelRow getIfPresent(Long id) {
+    ModelRow row = heap.getIfPresent(id);
+    if (row == null) {
+      row = heap.get(id, this::getOffHeap);
+    }
+    return row;
+  }
+
+  @Override
+  public void put(Long id, ModelRow row) {
+    heap.put(id, row);
+    store(id, row);
+  }
+
+  @Override
+  public boolean replace(Long id, ModelRow oldValue, ModelRow newValue) {
+    if (heap.replace(id, oldValue, newValue)) {
+      store(id, newValue);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void invalidate(Long id) {
+    heap.invalidate(id);
+    store.remove(id);
+  }
+
+  @Override
+  public void invalidateAll() {
+    heap.invalidateAll();
+    store.clear();
+  }
+
+  /**
+   * Go through the rows on the heap followed by the rows available only off
+   * heap
+   *
+   * @param action The action performed on each row
+   */
+  @Override
+  public void forEach(BiConsumer<? super Long, ? super ModelRow> action) {
+    Set<Long> visited = new HashSet<>();
+    heap.forEach((id, row) -> {
+      visited.add(id);
+      action.accept(id, row);
+    });
+
+    for(Long id:store.keys()) {
+      if (!visited.contains(id)) {
+        ModelRow row = getOffHeap(id);
+        if (row != null) {
+          action.accept(id, row);
+        }
+      }
+    }
+  }
+
+  /**
+   * The number of rows available in the cache, most of them off heap
+   *
+   * @return The number of rows
+   */
+  @Override
+  public long size() {
+    return Math.max(heap.size(), store.size());
+  }
+
+  public OffHeapStore getStore() {
+    return store;
+  }
+}
@@ -0,0 +1,195 @@
+package net.symplifier.db.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * A store of byte records, keyed by a long, kept in direct {@link ByteBuffer}
+ * slabs outside the java heap. The records are appended to the current slab,
+ * an updated record is appended again and its previous copy becomes garbage.
+ * When all the slabs are full the oldest slab is recycled, dropping all the
+ * records still living in it (FIFO eviction by slab).
+ *
+ * <pre>
+ *   record: [long key][int length][bytes]
+ * </pre>
+ *
+ * Only the location of the records (slab and offset) is kept on the heap.
+ */
+public class OffHeapStore {
+  public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+  private static final int HEADER = 12;
+
+  private final ByteBuffer[] slabs;
+  /* The number of bytes written to each slab */
+  private final int[] used;
+  private final int slabSize;
+
+  /* The location of each record, slab index in the upper and offset in the
+   * lower 32 bits */
+  private final ConcurrentHashMap<Long, Long> index = new ConcurrentHashMap<>();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /* The slab being written and the position within it */
+  private int current;
+  private int position;
+  /* The number of slabs allocated so far, allocated on demand */
+  private int allocated;
+
+  /**
+   * Create the store
+   *
+   * @param capacity The maximum number of bytes kept off heap
+   * @param slabSize The size of each slab
+   */
+  public OffHeapStore(long capacity, int slabSize) {
+    int count = (int) Math.max(1, (capacity + slabSize - 1) / slabSize);
+    this.slabs = new ByteBuffer[count];
+    this.used = new int[count];
+    this.slabSize = slabSize;
+  }
+
+  /**
+   * Store the record, replacing the previous one with the same key. A record
+   * larger than the slab is not stored.
+   *
+   * @param key The key
+   * @param record The record bytes
+   * @return {@code true} if the record was stored
+   */
+  public boolean put(long key, byte[] record) {
+    int size = HEADER + record.length;
+    if (size > slabSize) {
+      index.remove(key);
+      return false;
+    }
+
+    lock.writeLock().lock();
+    try {
+      if (allocated == 0 || position + size > slabSize) {
+        nextSlab();
+      }
+
+      ByteBuffer slab = slabs[current].duplicate();
+      slab.position(position);
+      slab.putLong(key);
+      slab.putInt(record.length);
+      slab.put(record);
+
+      index.put(key, ((long) current << 32) | position);
+      position += size;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Read the record with the given key
+   *
+   * @param key The key
+   * @param reader The reader of the record, called with a buffer positioned at
+   *               the beginning of the record. The buffer must not be used
+   *               after the reader returns
+   * @param <R> The type of the result
+   * @return The result of the reader or {@code null} if the record is not
+   *         available
+   */
+  public <R> R get(long key, Function<ByteBuffer, R> reader) {
+    lock.readLock().lock();
+    try {
+      Long location = index.get(key);
+      if (location == null) {
+        return null;
+      }
+
+      int offset = (int) (location & 0xffffffffL);
+      ByteBuffer slab = slabs[(int) (location >>> 32)].duplicate();
+      int length = slab.getInt(offset + 8);
+      slab.limit(offset + HEADER + length);
+      slab.position(offset + HEADER);
+      return reader.apply(slab.slice());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void remove(long key) {
+    index.remove(key);
+  }
+
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      index.clear();
+      position = 0;
+      current = 0;
+      allocated = 0;
+      for(int i=0; i<slabs.length; ++i) {
+        slabs[i] = null;
+        used[i] = 0;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The keys of all the records in the store
+   *
+   * @return The keys
+   */
+  public Set<Long> keys() {
+    return Collections.unmodifiableSet(index.keySet());
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * The number of bytes allocated off heap so far
+   *
+   * @return The number of bytes
+   */
+  public long getAllocatedBytes() {
+    return (long) allocated * slabSize;
+  }
+
+  /* Must be called with the write lock held */
+  private void nextSlab() {
+    if (allocated > 0) {
+      used[current] = position;
+    }
+
+    if (allocated < slabs.length) {
+      current = allocated;
+      slabs[current] = ByteBuffer.allocateDirect(slabSize);
+      allocated += 1;
+    } else {
+      current = (current + 1) % slabs.length;
+      evict(current);
+    }
+    position = 0;
+  }
+
+  /* Drop the records that still live in the slab being recycled */
+  private void evict(int slabIndex) {
+    ByteBuffer slab = slabs[slabIndex];
+    int offset = 0;
+    while (offset < used[slabIndex]) {
+      long key = slab.getLong(offset);
+      int length = slab.getInt(offset + 8);
+      index.remove(key, ((long) slabIndex << 32) | offset);
+      offset += HEADER + length;
+    }
+    used[slabIndex] = 0;
+  }
+}
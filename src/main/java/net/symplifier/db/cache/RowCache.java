@@ -0,0 +1,88 @@
+package net.symplifier.db.cache;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The cache used for keeping the rows of a model (keyed by the primary key)
+ * and the rows of the unique columns (keyed by the column value). The
+ * implementation is provided by a {@link RowCacheProvider} as per the
+ * {@link CachePolicy} of the model.
+ *
+ * <p>
+ *   The implementations must be thread safe. The concurrent misses on the
+ *   same key should wait for a single load.
+ * </p>
+ *
+ * @param <K> The type of the key
+ * @param <V> The type of the cached value
+ */
+public interface RowCache<K, V> {
+
+  /**
+   * Retrieve the value from the cache, loading it through the loader with
+   * which the cache was created if it is not available
+   *
+   * @param key The key
+   * @return The value or {@code null} if the loader couldn't find it
+   */
+  V get(K key);
+
+  /**
+   * Retrieve the value from the cache, loading it through the given loader if
+   * it is not available. A {@code null} from the loader is not cached.
+   *
+   * @param key The key
+   * @param loader The loader for the value
+   * @return The value or {@code null}
+   */
+  V get(K key, Function<? super K, ? extends V> loader);
+
+  /**
+   * Retrieve the value only if it is available in the cache
+   *
+   * @param key The key
+   * @return The cached value or {@code null}
+   */
+  V getIfPresent(K key);
+
+  void put(K key, V value);
+
+  /**
+   * Replace the cached value only if it is still the expected one
+   *
+   * @param key The key
+   * @param oldValue The value expected in the cache
+   * @param newValue The replacement
+   * @return {@code true} if the value was replaced
+   */
+  boolean replace(K key, V oldValue, V newValue);
+
+  void invalidate(K key);
+
+  void invalidateAll();
+
+  /**
+   * Go through all the entries available in the cache
+   *
+   * @param action The action performed on each entry
+   */
+  void forEach(BiConsumer<? super K, ? super V> action);
+
+  /**
+   * Check if the cache could drop the entries on its own. The entries of a
+   * cache that doesn't evict are removed only when invalidated.
+   *
+   * @return {@code true} if the entries could be evicted
+   */
+  default boolean canEvict() {
+    return true;
+  }
+
+  /**
+   * The approximate number of entries in the cache
+   *
+   * @return The number of entries
+   */
+  long size();
+}
@@ -0,0 +1,62 @@
+package net.symplifier.db.cache;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.function.Function;
+
+/**
+ * The provider of the {@link RowCache} implementation. The provider is picked
+ * through the {@link CachePolicy} of a model, the ones available out of the box
+ * are
+ * <ul>
+ *   <li>{@link #GUAVA} - LRU with expiry and weight support (default)</li>
+ *   <li>{@link #TINY_LFU} - Frequency aware eviction that resists scans</li>
+ *   <li>{@link #UNBOUNDED} - Keeps every row that is ever loaded</li>
+ *   <li>{@link #NONE} - Doesn't cache anything</li>
+ * </ul>
+ *
+ * A different default could be installed through the {@link ServiceLoader}
+ * mechanism, by listing the implementation in
+ * {@code META-INF/services/net.symplifier.db.cache.RowCacheProvider}.
+ */
+public interface RowCacheProvider {
+  RowCacheProvider GUAVA = new GuavaRowCache.Provider();
+  RowCacheProvider TINY_LFU = new TinyLfuRowCache.Provider();
+  RowCacheProvider UNBOUNDED = new UnboundedRowCache.Provider();
+  RowCacheProvider NONE = new NoRowCache.Provider();
+
+  /**
+   * Create a cache as per the given policy
+   *
+   * @param policy The cache policy
+   * @param loader The loader used by {@link RowCache#get(Object)}, when
+   *               {@code null} the cache doesn't load on its own
+   * @param <K> The type of the key
+   * @param <V> The type of the value
+   * @return The cache
+   */
+  <K, V> RowCache<K, V> create(CachePolicy policy, Function<? super K, ? extends V> loader);
+
+  /**
+   * The provider used when the policy doesn't name one. The first provider
+   * registered through the {@link ServiceLoader} is used, {@link #GUAVA}
+   * otherwise.
+   *
+   * @return The default provider
+   */
+  static RowCacheProvider getDefault() {
+    return Default.INSTANCE;
+  }
+
+  final class Default {
+    private static final RowCacheProvider INSTANCE;
+
+    static {
+      Iterator<RowCacheProvider> it = ServiceLoader.load(RowCacheProvider.class).iterator();
+      INSTANCE = it.hasNext() ? it.next() : GUAVA;
+    }
+
+    private Default() {
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package net.symplifier.db.cache;
+
+import java.util.HashSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The index for equality and range lookups, in the natural order of the
+ * column values
+ */
+public class SortedIndex extends MemoryIndex {
+  private final ConcurrentSkipListMap<Object, Set<Long>> entries = new ConcurrentSkipListMap<>();
+
+  @Override
+  protected ConcurrentMap<Object, Set<Long>> getEntries() {
+    return entries;
+  }
+
+  @Override
+  public Type getType() {
+    return Type.SORTED;
+  }
+
+  /**
+   * The ids of the rows with the values within the given range. The rows
+   * without value are never included.
+   *
+   * @param from The lower bound or {@code null} for no lower bound
+   * @param fromInclusive Whether the lower bound is included
+   * @param to The upper bound or {@code null} for no upper bound
+   * @param toInclusive Whether the upper bound is included
+   * @return The ids
+   */
+  public Set<Long> range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+    NavigableMap<Object, Set<Long>> range = entries;
+    if (from != null) {
+      range = range.tailMap(from, fromInclusive);
+    }
+    if (to != null) {
+      range = range.headMap(to, toInclusive);
+    }
+
+    Set<Long> res = new HashSet<>();
+    for(Set<Long> ids:range.values()) {
+      res.addAll(ids);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,193 @@
+package net.symplifier.db.cache;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The bus over TCP. Every node listens on a port for the messages of the
+ * other nodes and sends its own messages to the fixed list of peers, each
+ * message framed with its length. A connection to a peer is opened on the
+ * first message and opened again on the next message after a failure, the
+ * messages published while a peer is unreachable are lost for that peer.
+ *
+ * <p>
+ *   The messages are sent by a background thread for each of the peers, so
+ *   the commit publishing a message never waits on a slow or unreachable
+ *   peer. A peer that cannot keep up loses the messages beyond its queue.
+ * </p>
+ */
+public class TcpBus extends AbstractInvalidationBus {
+  private static final int CONNECT_TIMEOUT = 2000;
+  /* Refuse the frames larger than this, the stream is out of sync */
+  private static final int MAX_FRAME = 64 * 1024 * 1024;
+  /* The messages waiting to be sent to a peer */
+  private static final int MAX_QUEUED = 10000;
+
+  private final List<InetSocketAddress> peers;
+  private final ServerSocket server;
+  private final Map<InetSocketAddress, DataOutputStream> connections = new ConcurrentHashMap<>();
+  private final Map<InetSocketAddress, BlockingQueue<byte[]>> queues = new ConcurrentHashMap<>();
+  private final List<Thread> senders = new ArrayList<>();
+  private final List<Socket> accepted = new ArrayList<>();
+  private volatile boolean closed;
+
+  /**
+   * Start listening for the messages of the peers
+   *
+   * @param port The port on which this node listens
+   * @param peers The addresses of the other nodes
+   * @throws IOException if the port could not be opened
+   */
+  public TcpBus(int port, List<InetSocketAddress> peers) throws IOException {
+    this.peers = new ArrayList<>(peers);
+    this.server = new ServerSocket(port);
+
+    Thread acceptor = new Thread(this::accept, "TcpBus-" + port);
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    for(InetSocketAddress peer:this.peers) {
+      BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+      queues.put(peer, queue);
+
+      Thread sender = new Thread(() -> send(peer, queue), "TcpBus-" + port + "-" + peer);
+      sender.setDaemon(true);
+      sender.start();
+      senders.add(sender);
+    }
+  }
+
+  @Override
+  public void publish(Invalidation message) {
+    byte[] data = message.encode();
+    for(InetSocketAddress peer:peers) {
+      if (!queues.get(peer).offer(data)) {
+        LOGGER.error("Could not publish " + message + " to " + peer + ", too many messages pending");
+      }
+    }
+  }
+
+  private void send(InetSocketAddress peer, BlockingQueue<byte[]> queue) {
+    while (!closed) {
+      byte[] data;
+      try {
+        data = queue.take();
+      } catch (InterruptedException e) {
+        // Closed
+        break;
+      }
+
+      try {
+        DataOutputStream out = connections.get(peer);
+        if (out == null) {
+          Socket socket = new Socket();
+          socket.connect(peer, CONNECT_TIMEOUT);
+          socket.setTcpNoDelay(true);
+          out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+          connections.put(peer, out);
+        }
+        out.writeInt(data.length);
+        out.write(data);
+        // Send the messages that piled up in the meantime along
+        if (queue.isEmpty()) {
+          out.flush();
+        }
+      } catch (IOException e) {
+        LOGGER.error("Could not publish the invalidation to " + peer, e);
+        disconnect(peer);
+      }
+    }
+    disconnect(peer);
+  }
+
+  private void disconnect(InetSocketAddress peer) {
+    DataOutputStream out = connections.remove(peer);
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // Nothing to do, the connection is dropped anyway
+      }
+    }
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        Socket socket = server.accept();
+        synchronized (accepted) {
+          accepted.add(socket);
+        }
+        Thread reader = new Thread(() -> receive(socket), "TcpBus-" + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+      } catch (SocketException e) {
+        // Closed
+        break;
+      } catch (IOException e) {
+        LOGGER.error("Error while accepting the peer connection", e);
+      }
+    }
+  }
+
+  private void receive(Socket socket) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+      while (!closed) {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME) {
+          throw new IOException("Invalid frame of " + length + " bytes");
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+
+        Invalidation message = Invalidation.decode(data, 0, length);
+        if (message != null) {
+          deliver(message);
+        }
+      }
+    } catch (EOFException | SocketException e) {
+      // The peer went away
+    } catch (IOException e) {
+      LOGGER.error("Error while receiving the invalidations from " + socket.getRemoteSocketAddress(), e);
+    } finally {
+      synchronized (accepted) {
+        accepted.remove(socket);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      server.close();
+    } catch (IOException e) {
+      LOGGER.warn("Could not close the server socket", e);
+    }
+
+    // The senders close their connections on the way out
+    for(Thread sender:senders) {
+      sender.interrupt();
+    }
+
+    synchronized (accepted) {
+      for(Socket socket:accepted) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Already gone
+        }
+      }
+      accepted.clear();
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package net.symplifier.db.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The row cache with the W-TinyLFU eviction policy. The new entries are
+ * admitted into a small LRU window (1% of the capacity). An entry leaving the
+ * window enters the main region only if it has been used more often than the
+ * entry that would be evicted for it, as estimated by a {@link FrequencySketch}.
+ * The main region is a segmented LRU, the entries used again while on
+ * probation are promoted to the protected segment (80% of the main region).
+ *
+ * <p>
+ *   The rows read once by a large scan die in the window without pushing out
+ *   the rows that are used repeatedly, which a plain LRU would evict.
+ * </p>
+ *
+ * <p>
+ *   The reads don't block on the eviction lock, the access is recorded only
+ *   if the lock is free and is dropped otherwise, which affects only the
+ *   precision of the policy. Only the maximum size of the {@link CachePolicy}
+ *   is supported.
+ * </p>
+ */
+public class TinyLfuRowCache<K, V> implements RowCache<K, V> {
+  private static final int WINDOW = 0;
+  private static final int PROBATION = 1;
+  private static final int PROTECTED = 2;
+
+  private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+  private final Loader<K, V> loader;
+
+  /* Guards the eviction policy structures below */
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  private final AccessOrder<K, V> window = new AccessOrder<>();
+  private final AccessOrder<K, V> probation = new AccessOrder<>();
+  private final AccessOrder<K, V> protect = new AccessOrder<>();
+
+  private final long maximumSize;
+  private final long windowMaximum;
+  private final long protectedMaximum;
+
+  public TinyLfuRowCache(long maximumSize, Function<? super K, ? extends V> loader) {
+    this.maximumSize = maximumSize;
+    this.windowMaximum = Math.max(1, maximumSize / 100);
+    this.protectedMaximum = (long)((maximumSize - windowMaximum) * 0.8);
+    this.sketch = new FrequencySketch(maximumSize);
+    this.loader = new Loader<>(loader);
+  }
+
+  @Override
+  public V get(K key) {
+    return get(key, loader.getDefault());
+  }
+
+  @Override
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    V value = getIfPresent(key);
+    if (value != null || loader == null) {
+      return value;
+    }
+
+    return this.loader.load(key, loader, (k, v) -> {
+      Node<K, V> node = new Node<>(k, v);
+      Node<K, V> existing = data.putIfAbsent(k, node);
+      if (existing != null) {
+        return existing.value;
+      }
+      evictionLock.lock();
+      try {
+        onAdd(node);
+      } finally {
+        evictionLock.unlock();
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public V getIfPresent(K key) {
+    Node<K, V> node = data.get(key);
+    if (node == null) {
+      return null;
+    }
+
+    if (evictionLock.tryLock()) {
+      try {
+        onAccess(node);
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+    return node.value;
+  }
+
+  @Override
+  public void put(K key, V value) {
+    Node<K, V> node = new Node<>(key, value);
+    Node<K, V> existing = data.put(key, node);
+    evictionLock.lock();
+    try {
+      if (existing != null) {
+        unlink(existing);
+      }
+      onAdd(node);
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    Node<K, V> node = data.get(key);
+    if (node == null || node.value != oldValue) {
+      return false;
+    }
+
+    Node<K, V> replacement = new Node<>(key, newValue);
+    if (!data.replace(key, node, replacement)) {
+      return false;
+    }
+
+    evictionLock.lock();
+    try {
+      // The replacement takes over the position of the old entry
+      if (node.queue < 0) {
+        onAdd(replacement);
+      } else {
+        order(node.queue).replace(node, replacement);
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+    return true;
+  }
+
+  @Override
+  public void invalidate(K key) {
+    Node<K, V> node = data.remove(key);
+    if (node != null) {
+      evictionLock.lock();
+      try {
+        unlink(node);
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void invalidateAll() {
+    evictionLock.lock();
+    try {
+      data.clear();
+      window.clear();
+      probation.clear();
+      protect.clear();
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    data.forEach((key, node) -> action.accept(key, node.value));
+  }
+
+  @Override
+  public long size() {
+    return data.size();
+  }
+
+  private AccessOrder<K, V> order(int queue) {
+    return queue == WINDOW ? window : (queue == PROBATION ? probation : protect);
+  }
+
+  private void unlink(Node<K, V> node) {
+    if (node.queue >= 0) {
+      order(node.queue).remove(node);
+      node.queue = -1;
+    }
+  }
+
+  /* Must be called with the eviction lock held */
+  private void onAccess(Node<K, V> node) {
+    if (node.queue < 0) {
+      // Not yet added to the policy or already evicted
+      return;
+    }
+
+    sketch.increment(node.key);
+    if (node.queue == PROBATION) {
+      probation.remove(node);
+      node.queue = PROTECTED;
+      protect.add(node);
+
+      // Demote the least recently used protected entries back to probation
+      while (protect.size() > protectedMaximum) {
+        Node<K, V> demoted = protect.poll();
+        demoted.queue = PROBATION;
+        probation.add(demoted);
+      }
+    } else {
+      order(node.queue).moveToTail(node);
+    }
+  }
+
+  /* Must be called with the eviction lock held */
+  private void onAdd(Node<K, V> node) {
+    if (maximumSize == 0) {
+      data.remove(node.key, node);
+      return;
+    }
+
+    // The entry could have been invalidated before reaching here
+    if (data.get(node.key) != node) {
+      return;
+    }
+
+    sketch.increment(node.key);
+    node.queue = WINDOW;
+    window.add(node);
+    evict();
+  }
+
+  private void evict() {
+    while (window.size() > windowMaximum) {
+      Node<K, V> candidate = window.poll();
+      candidate.queue = -1;
+
+      if (probation.size() + protect.size() < maximumSize - windowMaximum) {
+        admit(candidate);
+        continue;
+      }
+
+      Node<K, V> victim = probation.size() > 0 ? probation.peek() : protect.peek();
+      if (victim != null && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+        unlink(victim);
+        data.remove(victim.key, victim);
+        admit(candidate);
+      } else {
+        data.remove(candidate.key, candidate);
+      }
+    }
+  }
+
+  private void admit(Node<K, V> node) {
+    node.queue = PROBATION;
+    probation.add(node);
+  }
+
+  static final class Node<K, V> {
+    final K key;
+    final V value;
+    int queue = -1;
+    Node<K, V> prev;
+    Node<K, V> next;
+
+    Node(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Doubly linked list of the nodes in the order of access, the least recently
+   * used at the head
+   */
+  static final class AccessOrder<K, V> {
+    private Node<K, V> head;
+    private Node<K, V> tail;
+    private long size;
+
+    long size() {
+      return size;
+    }
+
+    Node<K, V> peek() {
+      return head;
+    }
+
+    Node<K, V> poll() {
+      Node<K, V> node = head;
+      if (node != null) {
+        remove(node);
+      }
+      return node;
+    }
+
+    void add(Node<K, V> node) {
+      node.prev = tail;
+      node.next = null;
+      if (tail == null) {
+        head = node;
+      } else {
+        tail.next = node;
+      }
+      tail = node;
+      size += 1;
+    }
+
+    void remove(Node<K, V> node) {
+      if (node.prev == null) {
+        head = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+      if (node.next == null) {
+        tail = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+      size -= 1;
+    }
+
+    void moveToTail(Node<K, V> node) {
+      if (node != tail) {
+        remove(node);
+        add(node);
+      }
+    }
+
+    void replace(Node<K, V> node, Node<K, V> replacement) {
+      replacement.queue = node.queue;
+      replacement.prev = node.prev;
+      replacement.next = node.next;
+      if (node.prev == null) {
+        head = replacement;
+      } else {
+        node.prev.next = replacement;
+      }
+      if (node.next == null) {
+        tail = replacement;
+      } else {
+        node.next.prev = replacement;
+      }
+      node.prev = null;
+      node.next = null;
+      node.queue = -1;
+    }
+
+    void clear() {
+      Node<K, V> node = head;
+      while (node != null) {
+        Node<K, V> next = node.next;
+        node.prev = null;
+        node.next = null;
+        node.queue = -1;
+        node = next;
+      }
+      head = null;
+      tail = null;
+      size = 0;
+    }
+  }
+
+  public static class Provider implements RowCacheProvider {
+    @Override
+    public <K, V> RowCache<K, V> create(CachePolicy policy, Function<? super K, ? extends V> loader) {
+      long size = policy.getMaximumSize() >= 0 ? policy.getMaximumSize() : CachePolicy.DEFAULT_MAXIMUM_SIZE;
+      return new TinyLfuRowCache<>(size, loader);
+    }
+  }
+}
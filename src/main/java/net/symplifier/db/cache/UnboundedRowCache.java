@@ -0,0 +1,82 @@
+package net.symplifier.db.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The row cache that never evicts. Meant for the small reference models that
+ * are expected to stay in the memory completely. The size and expiry options
+ * of the {@link CachePolicy} are ignored.
+ */
+public class UnboundedRowCache<K, V> implements RowCache<K, V> {
+
+  private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<>();
+  private final Loader<K, V> loader;
+
+  public UnboundedRowCache(Function<? super K, ? extends V> loader) {
+    this.loader = new Loader<>(loader);
+  }
+
+  @Override
+  public V get(K key) {
+    return get(key, loader.getDefault());
+  }
+
+  @Override
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    V value = map.get(key);
+    if (value != null || loader == null) {
+      return value;
+    }
+
+    return this.loader.load(key, loader, map::putIfAbsent);
+  }
+
+  @Override
+  public V getIfPresent(K key) {
+    return map.get(key);
+  }
+
+  @Override
+  public void put(K key, V value) {
+    map.put(key, value);
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    return map.replace(key, oldValue, newValue);
+  }
+
+  @Override
+  public void invalidate(K key) {
+    map.remove(key);
+  }
+
+  @Override
+  public void invalidateAll() {
+    map.clear();
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    map.forEach(action);
+  }
+
+  @Override
+  public boolean canEvict() {
+    return false;
+  }
+
+  @Override
+  public long size() {
+    return map.size();
+  }
+
+  public static class Provider implements RowCacheProvider {
+    @Override
+    public <K, V> RowCache<K, V> create(CachePolicy policy, Function<? super K, ? extends V> loader) {
+      return new UnboundedRowCache<>(loader);
+    }
+  }
+}
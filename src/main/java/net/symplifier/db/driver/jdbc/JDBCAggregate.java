@@ -0,0 +1,217 @@
+package net.symplifier.db.driver.jdbc;
+
+import net.symplifier.db.*;
+import net.symplifier.db.exceptions.DatabaseException;
+import net.symplifier.db.exceptions.ModelException;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The aggregate query implementation for JDBC. The FROM, JOIN and WHERE part
+ * of the query is taken from the {@link JDBCQuery} built with the same builder,
+ * only the select list is replaced with the aggregates. The results are read
+ * directly into {@link Query.Tuple}, no model is hydrated and the model caches
+ * are never touched.
+ *
+ * <p>
+ *   The aggregates cover the records the query would retrieve, within its
+ *   limit. When the query has joins or a limit and only the columns of the
+ *   primary model are aggregated, the aggregates are computed over the
+ *   distinct primary keys selected by the query, so that the joins don't
+ *   count a record (or add up its values) more than once.
+ * </p>
+ */
+public class JDBCAggregate<T extends Model> implements Query.Aggregate {
+
+  private final List<Column> groupBy;
+  private final List<Query.AggregateColumn> aggregates;
+  private final List<Query.Parameter> parameters;
+
+  /* The fields for reading the group by columns and the min/max aggregates */
+  private final JDBCField[] fields;
+
+  private final String sql;
+
+  @SuppressWarnings("unchecked")
+  public JDBCAggregate(JDBCDriver driver, Query.Builder<T> builder,
+                       List<Column> groupBy, List<Query.AggregateColumn> aggregates) {
+    JDBCQuery<T> query = new JDBCQuery<>(driver, builder);
+    ModelStructure<T> primaryModel = builder.getPrimaryModel();
+
+    this.groupBy = groupBy;
+    this.aggregates = aggregates;
+    this.parameters = new ArrayList<>(query.getFromParameters());
+    this.fields = new JDBCField[groupBy.size() + aggregates.size()];
+
+    boolean joined = builder.getJoins().size() > 0;
+    boolean primaryOnly = true;
+    for(Column col:groupBy) {
+      primaryOnly &= query.isPrimaryColumn(col);
+    }
+    for(Query.AggregateColumn aggregate:aggregates) {
+      primaryOnly &= aggregate.getColumn() == null || query.isPrimaryColumn(aggregate.getColumn());
+    }
+
+    // Aggregate over the distinct records selected by the query (within its
+    // limit) and not over the rows multiplied by the joins. With the columns
+    // of the joined models involved, the joined rows are aggregated instead,
+    // the limit of such a query is applied on the primary model within the
+    // FROM clause and the records are counted by their primary key.
+    String from;
+    if (primaryOnly && (joined || !query.getPageSQL().isEmpty())) {
+      from = query.getKeyedFromSQL("SELECT " + (joined ? "DISTINCT " : "")
+              + query.getPrimaryKeyReference() + query.getFromSQL() + query.getPageSQL());
+      parameters.addAll(query.getPageParameters());
+      joined = false;
+    } else {
+      from = query.getFromSQL();
+    }
+
+    StringBuilder sqlBuffer = new StringBuilder();
+    sqlBuffer.append("SELECT ");
+    int c = 0;
+    for(Column col:groupBy) {
+      if (c > 0) {
+        sqlBuffer.append(", ");
+      }
+      sqlBuffer.append(getReference(query, primaryModel, col));
+      fields[c++] = (JDBCField)col.getField();
+    }
+
+    boolean exists = false;
+    for(Query.AggregateColumn aggregate:aggregates) {
+      if (c > 0) {
+        sqlBuffer.append(", ");
+      }
+
+      Column col = aggregate.getColumn();
+      switch(aggregate.getOp()) {
+        case count:
+          if (col != null) {
+            sqlBuffer.append("COUNT(").append(getReference(query, primaryModel, col)).append(')');
+          } else if (joined) {
+            sqlBuffer.append("COUNT(DISTINCT ").append(query.getPrimaryKeyReference()).append(')');
+          } else {
+            sqlBuffer.append("COUNT(*)");
+          }
+          break;
+        case exists:
+          sqlBuffer.append('1');
+          exists = true;
+          break;
+        default:
+          sqlBuffer.append(aggregate.getOp().name().toUpperCase());
+          sqlBuffer.append('(').append(getReference(query, primaryModel, col)).append(')');
+          if (aggregate.getOp() == Query.AggregateOp.min || aggregate.getOp() == Query.AggregateOp.max) {
+            fields[c] = (JDBCField)col.getField();
+          }
+      }
+      c += 1;
+    }
+
+    sqlBuffer.append(from);
+
+    if (groupBy.size() > 0) {
+      sqlBuffer.append("\r\n  GROUP BY ");
+      for(int i=0; i<groupBy.size(); ++i) {
+        if (i > 0) {
+          sqlBuffer.append(", ");
+        }
+        sqlBuffer.append(getReference(query, primaryModel, groupBy.get(i)));
+      }
+    }
+
+    if (exists) {
+      sqlBuffer.append("\r\n\tLIMIT 1");
+    }
+
+    sql = sqlBuffer.toString();
+  }
+
+  private static String getReference(JDBCQuery query, ModelStructure primaryModel, Column col) {
+    String ref = query.getColumnReference(col);
+    if (ref == null) {
+      throw new ModelException(primaryModel.getType(),
+              "The column " + col.getFieldName() + " is not part of the query");
+    }
+    return ref;
+  }
+
+  public String getSQL() {
+    return sql;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<Query.Tuple> execute(DBSession session) {
+    JDBCSession jdbcSession = (JDBCSession) session;
+
+    // The aggregates must include the rows inserted in this session
+    session.flush();
+
+    List<Query.Tuple> res = new ArrayList<>();
+    PreparedStatement statement = null;
+    try {
+      JDBCSession.LOGGER.debug("Executing SQL - " + sql);
+      statement = jdbcSession.acquireStatement(sql, Statement.NO_GENERATED_KEYS);
+      statement.setFetchSize(0);
+      for(int i=0; i<parameters.size(); ++i) {
+        Query.Parameter p = parameters.get(i);
+        ((JDBCParameter) p.getSetter()).set(statement, i + 1, p.getDefault());
+      }
+
+      try(ResultSet rs = statement.executeQuery()) {
+        while(rs.next()) {
+          Object[] values = new Object[fields.length];
+          for(int i=0; i<groupBy.size(); ++i) {
+            values[i] = fields[i].get(rs, i + 1);
+          }
+          for(int i=0; i<aggregates.size(); ++i) {
+            int idx = groupBy.size() + i;
+            values[idx] = getAggregate(rs, idx, aggregates.get(i));
+          }
+          res.add(new Query.Tuple(groupBy, values));
+        }
+      }
+    } catch(SQLException e) {
+      throw new DatabaseException("Error while executing aggregate sql", e);
+    } finally {
+      jdbcSession.releaseStatement(statement);
+    }
+
+    return res;
+  }
+
+  private Object getAggregate(ResultSet rs, int idx, Query.AggregateColumn aggregate) throws SQLException {
+    switch(aggregate.getOp()) {
+      case count:
+      case exists:
+        return rs.getLong(idx + 1);
+      case avg:
+        double avg = rs.getDouble(idx + 1);
+        return rs.wasNull() ? null : avg;
+      case sum:
+        Object sum = rs.getObject(idx + 1);
+        if (sum == null) {
+          return null;
+        }
+        Class type = aggregate.getColumn().getValueType();
+        if (type == Integer.class || type == Long.class) {
+          return ((Number)sum).longValue();
+        } else {
+          return ((Number)sum).doubleValue();
+        }
+      default:
+        return fields[idx].get(rs, idx + 1);
+    }
+  }
+
+  public String toString() {
+    return sql;
+  }
+}
@@ -5,14 +5,19 @@ import net.symplifier.db.*;
 import net.symplifier.db.exceptions.DatabaseException;
 import org.apache.commons.dbcp2.*;
 import org.apache.commons.pool2.ObjectPool;
+import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The JDBCDriver for ORM
@@ -22,6 +27,18 @@ import java.util.Map;
 public abstract class JDBCDriver implements Driver, Session.Listener {
   private DataSource dataSource;
   private final Schema schema;
+
+  /* The write statements compiled for each of the registered models */
+  private final Map<ModelStructure, JDBCStatements> statements = new ConcurrentHashMap<>();
+
+  /* The prepared statement caches of the physical connections of the pool,
+     removed when the pool destroys the connection */
+  private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+  private int statementCacheSize = 100;
+  private boolean multiRowInserts = true;
+  private final AtomicLong statementCacheHits = new AtomicLong();
+  private final AtomicLong statementCacheMisses = new AtomicLong();
+
   @Override
   public JDBCParameter getParameterSetter(Class type) {
     return PARAMETER_SETTERS.get(type);
@@ -65,14 +82,25 @@ public abstract class JDBCDriver implements Driver, Session.Listener {
     ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(uri, username, password);
 
     PoolableConnectionFactory poolableConnectionFactory =
-            new PoolableConnectionFactory(connectionFactory, null);
+            new PoolableConnectionFactory(connectionFactory, null) {
+      @Override
+      public void destroyObject(PooledObject<PoolableConnection> p) throws Exception {
+        // The connection is evicted or has failed the validation, its
+        // statements are closed along with it
+        removeStatementCache(p.getObject().getInnermostDelegateInternal());
+        super.destroyObject(p);
+      }
+    };
 
     ObjectPool<PoolableConnection> connectionPool
             = new GenericObjectPool<>(poolableConnectionFactory);
 
     poolableConnectionFactory.setPool(connectionPool);
 
-    dataSource = new PoolingDataSource<>(connectionPool);
+    PoolingDataSource<PoolableConnection> pool = new PoolingDataSource<>(connectionPool);
+    // The statements are cached on the physical connection underneath
+    pool.setAccessToUnderlyingConnectionAllowed(true);
+    dataSource = pool;
 
     // Register the driver as a session listener for the Application
     Session.addListener(this);
@@ -101,6 +129,120 @@ public abstract class JDBCDriver implements Driver, Session.Listener {
 
   }
 
+  /**
+   * Set the maximum number of prepared statements cached on each connection
+   *
+   * @param size The number of statements
+   */
+  public void setStatementCacheSize(int size) {
+    this.statementCacheSize = size;
+  }
+
+  /**
+   * Switch the multi-row INSERT statements used for the batch inserts. When
+   * switched off (or not supported by the database), the batch inserts are
+   * sent as JDBC batches instead.
+   *
+   * @param multiRowInserts {@code false} to always use the JDBC batches
+   */
+  public void setMultiRowInserts(boolean multiRowInserts) {
+    this.multiRowInserts = multiRowInserts;
+  }
+
+  public boolean isMultiRowInserts() {
+    return multiRowInserts;
+  }
+
+  /**
+   * Retrieve the prepared statement cache of the given pooled connection. The
+   * cache belongs to the physical connection and so is shared by all the
+   * sessions that get the same connection from the pool
+   *
+   * @param connection The connection retrieved from the pool
+   * @return The statement cache
+   */
+  StatementCache getStatementCache(Connection connection) {
+    return statementCaches.computeIfAbsent(connection, k -> new StatementCache(this, statementCacheSize));
+  }
+
+  /**
+   * Close the statements of the physical connection that is being destroyed
+   * by the pool and forget its cache
+   *
+   * @param connection The physical connection
+   */
+  private void removeStatementCache(Connection connection) {
+    if (connection != null) {
+      StatementCache cache = statementCaches.remove(connection);
+      if (cache != null) {
+        cache.clear();
+      }
+    }
+  }
+
+  /**
+   * Retrieve the physical connection underneath the pooled connection
+   *
+   * @param connection The connection retrieved from the pool
+   * @return The physical connection
+   */
+  static Connection getPhysicalConnection(Connection connection) {
+    if (connection instanceof DelegatingConnection) {
+      Connection inner = ((DelegatingConnection<?>) connection).getInnermostDelegate();
+      if (inner != null) {
+        return inner;
+      }
+    }
+    return connection;
+  }
+
+  void recordStatementCache(boolean hit) {
+    if (hit) {
+      statementCacheHits.incrementAndGet();
+    } else {
+      statementCacheMisses.incrementAndGet();
+    }
+  }
+
+  /**
+   * The number of times a prepared statement has been served from the cache
+   * across all the connections
+   *
+   * @return The hit count
+   */
+  public long getStatementCacheHits() {
+    return statementCacheHits.get();
+  }
+
+  /**
+   * The number of times a statement had to be prepared on the connection
+   *
+   * @return The miss count
+   */
+  public long getStatementCacheMisses() {
+    return statementCacheMisses.get();
+  }
+
+  @Override
+  public void registerModel(ModelStructure structure) {
+    statements.put(structure, new JDBCStatements(this, structure));
+  }
+
+  /**
+   * Retrieve the compiled statements for the given model
+   *
+   * @param structure The model structure
+   * @return The compiled statements
+   */
+  public JDBCStatements getStatements(ModelStructure structure) {
+    JDBCStatements s = statements.get(structure);
+    if (s == null) {
+      // A model that has been registered after the schema was generated
+      s = statements.computeIfAbsent(structure, k -> new JDBCStatements(this, k));
+    }
+    return s;
+  }
+
   @Override
   public void createModel(ModelStructure structure) {
     StringBuilder builder = new StringBuilder();
@@ -148,9 +290,20 @@ public abstract class JDBCDriver implements Driver, Session.Listener {
     String sql = builder.toString();
     System.out.println(sql);
 
-    try {
-      Connection conn = dataSource.getConnection();
-      conn.createStatement().execute(sql);
+    try (Connection conn = dataSource.getConnection();
+         Statement statement = conn.createStatement()) {
+      statement.execute(sql);
+
+      // The unique columns are looked up by their value (see
+      // ModelStructure#findBy), a plain index keeps the lookups fast without
+      // enforcing the uniqueness
+      for(int i=0; i<structure.getColumnCount(); ++i) {
+        Column col = structure.getColumn(i);
+        if (col.isUnique() && !col.isPrimary()) {
+          statement.execute("CREATE INDEX IF NOT EXISTS " + structure.getTableName() + "_" + col.getFieldName()
+                  + " ON " + structure.getTableName() + "(" + col.getFieldName() + ")");
+        }
+      }
     } catch(SQLException e) {
       throw new DatabaseException("Error while executing CREATE DDL", e);
     }
@@ -162,6 +315,13 @@ public abstract class JDBCDriver implements Driver, Session.Listener {
     return new JDBCQuery<>(this, builder);
   }
 
+  @Override
+  public <T extends Model> JDBCAggregate<T> createAggregate(Query.Builder<T> builder,
+                                                            List<Column> groupBy,
+                                                            List<Query.AggregateColumn> aggregates) {
+    return new JDBCAggregate<>(this, builder, groupBy, aggregates);
+  }
+
   @Override
   public void onSessionBegin(Session session) {
     try {
@@ -190,6 +350,113 @@ public abstract class JDBCDriver implements Driver, Session.Listener {
     s.rollbackTransaction(schema);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The LIKE comparisons are case insensitive by default, as with SQLite (for
+   * the ASCII characters) and the default collations of MySQL.
+   */
+  @Override
+  public boolean isLikeCaseSensitive() {
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The null values are the smallest values by default, as with SQLite and
+   * MySQL.
+   */
+  @Override
+  public boolean isNullsFirst() {
+    return true;
+  }
+
+  /**
+   * Check if the underlying JDBC driver is able to provide the generated keys
+   * for all the rows inserted through a single {@link java.sql.Statement#executeBatch()}
+   *
+   * @return {@code true} if the generated keys are available for batches
+   */
+  protected boolean supportsBatchGeneratedKeys() {
+    return true;
+  }
+
+  /**
+   * The maximum number of parameters that the database accepts in a single
+   * statement. This limits the number of rows that are inserted through a
+   * single multi-row INSERT statement. A value of 0 disables multi-row inserts
+   * in which case the JDBC batches are used.
+   *
+   * @return The maximum number of parameters per statement
+   */
+  protected int getMaxParameters() {
+    return 0;
+  }
+
+  /**
+   * Check if the generated primary keys of all the rows inserted through a
+   * single multi-row INSERT statement could be retrieved reliably. When not,
+   * the rows that need the generated keys are inserted through the JDBC
+   * batches.
+   *
+   * @param connection The connection on which the rows are being inserted
+   * @return {@code true} if the keys are available for multi-row inserts
+   * @throws SQLException
+   */
+  protected boolean supportsMultiRowGeneratedKeys(Connection connection) throws SQLException {
+    return true;
+  }
+
+  /**
+   * The maximum number of rows that the database accepts in the VALUES clause
+   * of a single INSERT statement
+   *
+   * @return The maximum number of rows per statement
+   */
+  protected int getMaxInsertRows() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Prepares a multi-row INSERT statement for which the generated primary keys
+   * need to be retrieved.
+   *
+   * @param session The session on which the statement is prepared
+   * @param sql The INSERT statement
+   * @param structure The model whose rows are being inserted
+   * @return The prepared statement, to be released back to the session
+   * @throws SQLException
+   */
+  protected PreparedStatement prepareInsert(JDBCSession session, String sql,
+                                            ModelStructure structure) throws SQLException {
+    return session.acquireStatement(sql, Statement.RETURN_GENERATED_KEYS);
+  }
+
+  /**
+   * Executes the multi-row INSERT statement prepared through
+   * {@link #prepareInsert(JDBCSession, String, ModelStructure)} and retrieves
+   * the generated primary keys in the same order as the rows were inserted
+   *
+   * @param statement The statement to execute
+   * @param rowCount The number of rows being inserted
+   * @return The generated primary keys
+   * @throws SQLException
+   */
+  protected long[] executeInsert(PreparedStatement statement, int rowCount) throws SQLException {
+    statement.executeUpdate();
+    long[] ids = new long[rowCount];
+    try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+      for (int i = 0; i < rowCount; ++i) {
+        if (!generatedKeys.next()) {
+          throw new DatabaseException("Generated keys not available for all the inserted rows", null);
+        }
+        ids[i] = generatedKeys.getLong(1);
+      }
+    }
+    return ids;
+  }
+
   /**
    * Mechanism to allow specific drivers to format the field name by enclosing
    * them within certain characters which might be different with different
@@ -3,6 +3,7 @@ package net.symplifier.db.driver.jdbc;
 import net.symplifier.core.application.Session;
 import net.symplifier.db.*;
 import net.symplifier.db.exceptions.DatabaseException;
+import net.symplifier.db.exceptions.ModelException;
 
 import java.sql.*;
 import java.util.*;
@@ -14,6 +15,10 @@ import java.util.*;
  */
 public class JDBCQuery<M extends Model> implements Query<M> {
 
+  /* The number of parent records for which the select-in joins are loaded
+     with a single query */
+  static final int SELECT_IN_BATCH = 100;
+
   private static class QueryColumn {
     private final Column column;
     private final int index;
@@ -28,61 +33,133 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     private final ModelStructure model;
     private final Map<Reference, ModelMap> relations;
     private final List<ModelMap> parents;
+    /* The columns retrieved by the query, the entries for the columns that
+       are not part of the projection are null */
     private final QueryColumn[] columns;
+    /* The projected columns, null if all the columns are retrieved */
+    private final Set<Column> projection;
+    /* Flag to mark if all the columns are retrieved */
+    private boolean complete;
     private Alias alias;
 
-    public ModelMap(ModelStructure model) {
+    public ModelMap(ModelStructure model, Set<Column> projection) {
       this.model = model;
       this.columns = new QueryColumn[model.getColumnCount()];
       this.relations = new LinkedHashMap<>();
       this.parents = new ArrayList<>();
+      this.projection = projection;
+    }
+
+    /**
+     * Check if the given column of the model is retrieved by the query
+     *
+     * @param column The column of the model
+     * @return {@code true} if the column is part of the projection
+     */
+    boolean isProjected(Column column) {
+      return projection == null || column.isPrimary() || projection.contains(column);
+    }
+
+    /**
+     * Check if all the columns of the model are retrieved by the query
+     *
+     * @return {@code true} if the rows are loaded completely
+     */
+    boolean isComplete() {
+      for(QueryColumn column:columns) {
+        if (column == null) {
+          return false;
+        }
+      }
+      return true;
     }
 
-    ModelInstance load(ResultSet rs, ModelInstance seed) throws SQLException {
+    /**
+     * Load the record of the model from the current row of the result set
+     *
+     * @param rs The result set
+     * @param seed The record loaded from the previous row of the result set
+     * @param detached {@code null} if the rows are published in the cache,
+     *                 otherwise the rows are kept out of the cache and the
+     *                 records created other than the primary record are
+     *                 added to the list
+     * @param identities The identity map of the session through which the
+     *                   records are reused, {@code null} to always create
+     *                   new records
+     * @return The record or {@code null} if the row belongs to the next record
+     * @throws SQLException
+     */
+    ModelInstance load(ResultSet rs, ModelInstance seed, List<ModelInstance> detached,
+                       IdentityMap identities) throws SQLException {
       // First read all the column
       int idx = columns[0].index;
       JDBCField field = fields[idx];
       Long id = (Long)field.get(rs, idx+1);
 
       if (seed == null) {
-        ModelRow row = model.getRow(id);
-        seed = (ModelInstance)model.create(row);
-        return recursiveLoad(rs, row, seed);
+        return recursiveLoad(rs, id, detached, identities);
       } else if(!id.equals(seed.getId())) {
         return null;
       } else {
-        return recursiveLoad(rs, seed.getPrimaryRow(), seed);
+        // The columns of the seed have already been loaded from its first
+        // record, only the relations could have more
+        loadRelations(rs, seed, detached, identities);
+        return seed;
       }
     }
 
-    ModelInstance recursiveLoad(ResultSet rs, ModelRow row, ModelInstance seed) throws SQLException {
-
-      // Stage 1. Load rest of the columns of the model
+    /* Populate a fresh row with the columns of the model and publish it */
+    private ModelRow loadRow(ResultSet rs, long id, boolean detached) throws SQLException {
+      ModelRow row = detached ? model.newDetachedRow(id) : model.newLoadingRow(id);
       for(int i=0; i<columns.length; ++i) {
+        if (columns[i] == null) {
+          continue;
+        }
         int idx = columns[i].index;
         Column col = columns[i].column;
         JDBCField field = fields[idx];
         Object value = field.get(rs, idx+1);
-        row.set(col.getIndex(), value);
+        row.set(col.getIndex(), value, false);
+      }
+      if (complete) {
+        row.setPartial(false);
       }
+      return detached ? row : model.publishRow(row);
+    }
+
+    ModelInstance recursiveLoad(ResultSet rs, long id, List<ModelInstance> detached,
+                                IdentityMap identities) throws SQLException {
+
+      // Stage 1. Load rest of the columns of the model
+      ModelRow row = loadRow(rs, id, detached != null);
+      ModelInstance seed = identities == null ? null : (ModelInstance)identities.get(model, id);
+      if (seed == null) {
+        seed = (ModelInstance)model.create(row);
+
+        // Stage 2. Load parent level columns if any
+        for (int l = 0; l < parents.size(); ++l) {
+          seed.setParentRow(l, parents.get(l).loadRow(rs, id, detached != null));
+        }
 
-      // Stage 2. Load parent level columns if any
-      for(int l=0; l<parents.size(); ++l) {
-        ModelMap parent = parents.get(l);
-        ModelRow parentRow  = parent.model.getRow(row.getId());
-        seed.setParentRow(l, parentRow);
-        for(int i=0; i<parent.columns.length; ++i) {
-          int idx = parent.columns[i].index;
-          Column col = parent.columns[i].column;
-          JDBCField field = fields[idx];
-          Object value = field.get(rs, idx+1);
-          parentRow.set(col.getIndex(), value);
+        if (identities != null) {
+          identities.put(seed);
+        }
+      } else {
+        // Already loaded in the session, the rows still go to the cache
+        for (ModelMap parent : parents) {
+          parent.loadRow(rs, id, detached != null);
         }
       }
 
       // Stage 3. Load implementation columns
       // TODO - Load implementation columns
 
+      loadRelations(rs, seed, detached, identities);
+      return seed;
+    }
+
+    private void loadRelations(ResultSet rs, ModelInstance seed, List<ModelInstance> detached,
+                               IdentityMap identities) throws SQLException {
       // Stage 4. Next up go through all the references and load them up as well
       for(Map.Entry<Reference, ModelMap> entry:relations.entrySet()) {
         Reference ref = entry.getKey();
@@ -93,16 +170,15 @@ public class JDBCQuery<M extends Model> implements Query<M> {
 
         ModelInstance child = seed.get(ref, id);
         if (child == null) {
-          ModelRow newRow = m.model.getRow(id);
-          child = (ModelInstance)m.model.create(row);
+          child = m.recursiveLoad(rs, id, detached, identities);
           seed.set(ref, id, child);
-          recursiveLoad(rs, newRow, child);
+          if (detached != null) {
+            detached.add(child);
+          }
         } else {
-          recursiveLoad(rs, child.getPrimaryRow(), child);
+          m.loadRelations(rs, child, detached, identities);
         }
       }
-
-      return seed;
     }
 
   }
@@ -170,38 +246,149 @@ public class JDBCQuery<M extends Model> implements Query<M> {
   final Column[] columns;
 
   private final String sql;
+  private final int fetchSize;
+  private final boolean readOnly;
+
+  /* The FROM and WHERE part of the query, with the number of parameters used
+     in it, reused by the aggregate queries */
+  private final String fromSql;
+  private final int fromParameterCount;
+
+  /* The ORDER BY and LIMIT selecting the page when the limit is not part of
+     the FROM clause, empty otherwise */
+  private final String pageSql;
+
+  /* The primary alias and the joins of the parents of the primary model, for
+     the aggregates over the distinct records of the primary model */
+  private final String primaryAlias;
+  private final String parentJoinSql;
+
+  /* The alias of the primary model when its filter is part of the WHERE
+     clause, null when the filter is applied while selecting the page */
+  private final Alias filterAlias;
+
+  /* The ordering of the primary model used for keyset pagination, null if
+     the query doesn't use keyset pagination */
+  private final List<Order> seekOrders;
+
+  /* The joins loaded with separate queries, see Query.Join#selectIn() */
+  private final List<Query.Join> selectInJoins = new ArrayList<>();
+
+  /* The references loaded along with the records */
+  private final List<Column.Reference> prefetch;
 
   private int aliasNumber = 0;
 
+  @SuppressWarnings("unchecked")
   public JDBCQuery(JDBCDriver driver, Query.Builder<M> builder) {
     this.driver = driver;
-    this.modelMap = new ModelMap(builder.getPrimaryModel());
+    this.fetchSize = builder.getFetchSize();
+    this.readOnly = builder.isReadOnly();
+    this.prefetch = new ArrayList<>(builder.getPrefetch());
     StringBuilder sqlBuffer = new StringBuilder();
 
     Set<Order> orders = builder.getOrderBy();
+    Object[] seekValues = null;
+    if (builder.isKeyset()) {
+      // The primary key is included in the ordering to break the ties
+      seekOrders = new ArrayList<>(orders);
+      ModelStructure<M> primaryModel = builder.getPrimaryModel();
+      Column primaryKey = primaryModel.getColumn(0);
+      boolean descending = false;
+      boolean hasPrimaryKey = false;
+      for(Order order:seekOrders) {
+        if (!primaryModel.containsColumn(order.getColumn())) {
+          throw new ModelException(primaryModel.getType(),
+                  "Keyset pagination is supported only on the columns of the model - "
+                          + order.getColumn().getFieldName());
+        }
+        descending = order.isDescending();
+        hasPrimaryKey |= order.getColumn() == primaryKey;
+      }
+      if (!hasPrimaryKey) {
+        seekOrders.add(new Order(primaryKey, descending));
+      }
+      orders = new LinkedHashSet<>(seekOrders);
+
+      if (builder.getSeekToken() != null) {
+        seekValues = SeekToken.decode(builder.getSeekToken(), getSeekColumns());
+      } else if (builder.getSeekValues() != null && builder.getSeekValues().length > 0) {
+        seekValues = builder.getSeekValues();
+        if (seekValues.length > seekOrders.size()) {
+          throw new ModelException(primaryModel.getType(),
+                  "More seek values than the ordering columns of the query");
+        }
+      }
+    } else {
+      seekOrders = null;
+    }
+
+    Set<Column> projection = (Set) builder.getFields();
+    if (projection != null && seekOrders != null) {
+      // The continuation token is made out of the ordering columns of the
+      // last record, so they are always retrieved
+      projection = new HashSet<>(projection);
+      projection.addAll(getSeekColumns());
+    }
+    this.modelMap = new ModelMap(builder.getPrimaryModel(), projection);
+
     Alias alias = new Alias(modelMap, builder.getFilter(), orders);
 
     Query.Limit limit = builder.getLimit();
     // Limit is tricky, when used with JOIN
     sqlBuffer.append("\r\n  FROM ");
     if (builder.getJoins().size() > 0 && limit != null) {
-      // We have joins, the limit has to be treated a bit specially
+      // We have joins, the limit has to be treated a bit specially. The page
+      // is selected out of the filtered records of the primary model, under
+      // the same alias, before the joins multiply the rows
       sqlBuffer.append("(SELECT * FROM ");
       sqlBuffer.append(builder.getPrimaryModel().getTableName());
+      sqlBuffer.append(" AS ");
+      sqlBuffer.append(alias);
+      Filter primaryFilter = alias.getFilter();
+      boolean pageFiltered = primaryFilter != null && primaryFilter.getOperationCount() > 0;
+      if (pageFiltered) {
+        sqlBuffer.append(" WHERE (");
+        generateFilterQuery(sqlBuffer, parameters, alias, primaryFilter);
+        sqlBuffer.append(')');
+      }
+      filterAlias = null;
+      if (seekOrders != null) {
+        // The page needs to be selected before the joins
+        if (seekValues != null) {
+          sqlBuffer.append(pageFiltered ? " AND (" : " WHERE (");
+          buildSeek(sqlBuffer, parameters, alias.toString(), seekValues);
+          sqlBuffer.append(')');
+        }
+        sqlBuffer.append(" ORDER BY ");
+        for(int i=0; i<seekOrders.size(); ++i) {
+          if (i > 0) {
+            sqlBuffer.append(", ");
+          }
+          sqlBuffer.append(driver.formatFieldName(seekOrders.get(i).getColumn().getFieldName()));
+          if (seekOrders.get(i).isDescending()) {
+            sqlBuffer.append(" DESC");
+          }
+        }
+        seekValues = null;
+      }
       buildLimit(sqlBuffer, parameters, limit, true);
       sqlBuffer.append(')');
       limit = null;
     } else {
       sqlBuffer.append(builder.getPrimaryModel().getTableName());
+      filterAlias = alias;
     }
     sqlBuffer.append(" AS ");
     sqlBuffer.append(alias);
-
+    primaryAlias = alias.toString();
+    int parentStart = sqlBuffer.length();
 
 //    Plan to implement parent level join with the help of primary keys
     // Join all the parents as well
     for(ModelStructure parent:getPrimaryModel().getParents()) {
-      ModelMap parentMap = new ModelMap(parent);
+      // The projection of the primary model includes the parent level columns
+      ModelMap parentMap = new ModelMap(parent, modelMap.projection);
       this.modelMap.parents.add(parentMap);
 
       Alias pAlias = new Alias(parentMap, null, null);
@@ -211,11 +398,23 @@ public class JDBCQuery<M extends Model> implements Query<M> {
               pAlias.name, parent.getPrimaryKeyField());
     }
 
+    parentJoinSql = sqlBuffer.substring(parentStart);
+
     // Join all other references
     buildJoins(modelMap, sqlBuffer, alias, builder.getPrimaryModel(), builder.getJoins());
 
     // Now prepare the filter
-    buildFilter(sqlBuffer, parameters);
+    boolean filtered = buildFilter(sqlBuffer, parameters);
+
+    // The keyset predicate follows the rest of the filter
+    if (seekValues != null) {
+      sqlBuffer.append(filtered ? "\r\n    AND (" : "\r\n  WHERE (");
+      buildSeek(sqlBuffer, parameters, alias.toString(), seekValues);
+      sqlBuffer.append(')');
+    }
+
+    fromSql = sqlBuffer.toString();
+    fromParameterCount = parameters.size();
 
     // Next up is the order by
     builderOrderBy(sqlBuffer);
@@ -223,14 +422,22 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     // if we still have a limit to process, we need to process it here now
     if (limit != null) {
       buildLimit(sqlBuffer, parameters, limit, false);
+      pageSql = sqlBuffer.substring(fromSql.length());
+    } else {
+      pageSql = "";
     }
 
     StringBuilder columnNames = new StringBuilder();
     columnNames.append("SELECT ");
-    // count total number of columns
+    // count total number of columns, only the projected columns are retrieved
     int totalColumns = 0;
     for(Alias a:aliases) {
-      totalColumns += a.getModel().getColumnCount();
+      ModelStructure model = a.getModel();
+      for(int i=0; i<model.getColumnCount(); ++i) {
+        if (a.modelMap.isProjected(model.getColumn(i))) {
+          totalColumns += 1;
+        }
+      }
     }
     fields = new JDBCField[totalColumns];
     columns = new Column[totalColumns];
@@ -241,6 +448,11 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     for(Alias a:aliases) {
       ModelStructure model = a.getModel();
       for(int i=0; i<model.getColumnCount(); ++i) {
+        Column col = model.getColumn(i);
+        if (!a.modelMap.isProjected(col)) {
+          continue;
+        }
+
         if (c>0) {
           columnNames.append(", ");
           if (i == 0) {   // Just making the URL pretty
@@ -249,13 +461,13 @@ public class JDBCQuery<M extends Model> implements Query<M> {
         }
         columnNames.append(a.toString());
         columnNames.append('.');
-        columnNames.append(model.getColumn(i).getFieldName());
+        columnNames.append(col.getFieldName());
 
-        Column col = model.getColumn(i);
         a.modelMap.columns[i] = new QueryColumn(col, c);
         columns[c] = col;
         fields[c++] = (JDBCField)col.getField();
       }
+      a.modelMap.complete = a.modelMap.isComplete();
     }
 
     columnNames.append(sqlBuffer);
@@ -275,13 +487,132 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     return sql;
   }
 
+  /**
+   * The FROM clause of the query including the joins and the WHERE clause,
+   * without any ordering
+   *
+   * @return The SQL text
+   */
+  String getFromSQL() {
+    return fromSql;
+  }
+
+  /**
+   * The parameters used in {@link #getFromSQL()} in their order
+   *
+   * @return The list of parameters
+   */
+  List<Parameter> getFromParameters() {
+    return parameters.subList(0, fromParameterCount);
+  }
+
+  /**
+   * The ORDER BY and LIMIT clauses that select the page of the records when
+   * the limit is not already applied within {@link #getFromSQL()} (which is
+   * the case for the queries with joins)
+   *
+   * @return The SQL text, empty if there isn't any limit to apply
+   */
+  String getPageSQL() {
+    return pageSql;
+  }
+
+  /**
+   * The parameters used in {@link #getPageSQL()} in their order
+   *
+   * @return The list of parameters
+   */
+  List<Parameter> getPageParameters() {
+    return pageSql.isEmpty() ? Collections.emptyList() : parameters.subList(fromParameterCount, parameters.size());
+  }
+
+  /**
+   * The FROM clause with only the primary model and its parents, restricted
+   * to the records whose primary keys are selected by the given query. The
+   * columns of these models have the same references as in this query.
+   *
+   * @param keysSql The query selecting the primary keys
+   * @return The SQL text
+   */
+  String getKeyedFromSQL(String keysSql) {
+    String pk = getPrimaryModel().getPrimaryKeyField();
+    return "\r\n  FROM (" + keysSql + ") AS K"
+            + "\r\n    INNER JOIN " + getPrimaryModel().getTableName() + " AS " + primaryAlias
+            + " ON " + primaryAlias + '.' + pk + "=K." + pk
+            + parentJoinSql;
+  }
+
+  /**
+   * The reference of the primary key of the primary model within the query
+   *
+   * @return The qualified name of the primary key
+   */
+  String getPrimaryKeyReference() {
+    return primaryAlias + '.' + getPrimaryModel().getPrimaryKeyField();
+  }
+
+  /**
+   * Check if the column belongs to the primary model or one of its parents,
+   * for which there is a single value per record
+   *
+   * @param column The column
+   * @return {@code true} for the column of the primary model
+   */
+  boolean isPrimaryColumn(Column column) {
+    if (getPrimaryModel().containsColumn(column)) {
+      return true;
+    }
+    for(ModelStructure parent:getPrimaryModel().getParents()) {
+      if (parent.containsColumn(column)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Retrieve the qualified name of the column for use within the query. The
+   * column could belong to the primary model, one of its parents or any of
+   * the joined models.
+   *
+   * @param column The column
+   * @return The column name qualified with its alias or {@code null} if the
+   *         column is not part of the query
+   */
+  String getColumnReference(Column column) {
+    for(Alias alias:aliases) {
+      if (alias.getModel().containsColumn(column)) {
+        return alias.toString() + '.' + driver.formatFieldName(column.getFieldName());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The columns whose values make up the continuation token of the query
+   *
+   * @return The ordering columns or {@code null} if the query doesn't use
+   *         keyset pagination
+   */
+  public List<Column> getSeekColumns() {
+    if (seekOrders == null) {
+      return null;
+    }
+
+    List<Column> res = new ArrayList<>(seekOrders.size());
+    for(Order order:seekOrders) {
+      res.add(order.getColumn());
+    }
+    return res;
+  }
+
   public class Prepared implements Query.Prepared<M> {
 
-    final PreparedStatement statement;
+    final JDBCSession session;
     private final Map<Parameter, Object> values = new HashMap<>();
 
-    Prepared(PreparedStatement stmt) {
-      this.statement = stmt;
+    Prepared(JDBCSession session) {
+      this.session = session;
     }
 
     public <T> Prepared set(Parameter<T> parameter, T value) {
@@ -292,7 +623,13 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     @Override
     @SuppressWarnings("unchecked")
     public Result<M> execute() {
+      PreparedStatement statement = null;
       try {
+        JDBCSession.LOGGER.debug("Executing SQL - " + sql);
+        statement = session.acquireStatement(sql, Statement.NO_GENERATED_KEYS);
+        // The statements are shared through the cache, so the fetch size is
+        // always set, including the default
+        statement.setFetchSize(fetchSize);
         for (int i = 0; i < parameters.size(); ++i) {
           Parameter p = parameters.get(i);
           Object v = values.get(p);
@@ -305,8 +642,9 @@ public class JDBCQuery<M extends Model> implements Query<M> {
         }
 
         ResultSet rs = statement.executeQuery();
-        return new JDBCResult<>(JDBCQuery.this, rs);
+        return new JDBCResult<>(JDBCQuery.this, session, statement, rs);
       } catch(SQLException e) {
+        session.releaseStatement(statement);
         throw new DatabaseException("Error while executing sql", e);
       }
 
@@ -327,14 +665,56 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     return session.prepare(this);
   }
 
+  /**
+   * Generates the keyset predicate for the given values of the ordering
+   * columns. The row value comparison {@code (a, b) > (?, ?)} is not
+   * available on all the databases and doesn't work with mixed ordering, so
+   * the expanded form is used, {@code a > ? OR (a = ? AND b > ?)}
+   *
+   * @param sqlBuffer The SQL being generated
+   * @param parameters The parameters of the query
+   * @param alias The alias of the primary model or {@code null} for unqualified
+   *              column names
+   * @param values The values of the first few ordering columns
+   */
   @SuppressWarnings("unchecked")
-  protected void buildFilter(StringBuilder sqlBuffer, List<Parameter> parameters) {
+  private void buildSeek(StringBuilder sqlBuffer, List<Parameter> parameters, String alias, Object[] values) {
+    for(int i=0; i<values.length; ++i) {
+      if (i > 0) {
+        sqlBuffer.append(" OR ");
+      }
+      sqlBuffer.append('(');
+      for(int j=0; j<=i; ++j) {
+        Order order = seekOrders.get(j);
+        Column column = order.getColumn();
+        if (j > 0) {
+          sqlBuffer.append(" AND ");
+        }
+        if (alias != null) {
+          sqlBuffer.append(alias);
+          sqlBuffer.append('.');
+        }
+        sqlBuffer.append(driver.formatFieldName(column.getFieldName()));
+        if (j < i) {
+          sqlBuffer.append("=?");
+        } else {
+          sqlBuffer.append(order.isDescending() ? "<?" : ">?");
+        }
+        parameters.add(new Parameter<>(values[j]).init(column));
+      }
+      sqlBuffer.append(')');
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  protected boolean buildFilter(StringBuilder sqlBuffer, List<Parameter> parameters) {
     boolean prefixed = false;
     boolean appended = false;
     for (Alias alias : aliases) {
       Filter filter = alias.getFilter();
 
-      if (filter == null) {
+      // The filter of the primary model may already be applied on the page
+      if (filter == null || (alias.getModelMap() == modelMap && alias != filterAlias)) {
         continue;
       }
 
@@ -348,9 +728,17 @@ public class JDBCQuery<M extends Model> implements Query<M> {
       }
 
       int checkLen = sqlBuffer.length();
-      generateFilterQuery(sqlBuffer, parameters, alias, filter);
+      // Kept together when combined with the other filters and the keyset
+      if (filter.getOperationCount() > 1) {
+        sqlBuffer.append('(');
+        generateFilterQuery(sqlBuffer, parameters, alias, filter);
+        sqlBuffer.append(')');
+      } else {
+        generateFilterQuery(sqlBuffer, parameters, alias, filter);
+      }
       appended = sqlBuffer.length() > checkLen;
     }
+    return prefixed;
   }
 
   @SuppressWarnings("unchecked")
@@ -497,7 +885,13 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     for(Query.Join join:joins) {
 
       Reference reference = join.getReference();
-      ModelMap newMap = new ModelMap(reference.getTargetType());
+      if (join.isSelectIn() && parentModel == this.modelMap && reference instanceof Relation.HasMany) {
+        // Loaded separately once the parent records are retrieved
+        selectInJoins.add(join);
+        continue;
+      }
+
+      ModelMap newMap = new ModelMap(reference.getTargetType(), join.getFields());
       parentModel.relations.put(reference, newMap);
 
       Alias joinAlias = new Alias(newMap, join.filter(), join.getOrderBy());
@@ -520,6 +914,137 @@ public class JDBCQuery<M extends Model> implements Query<M> {
     }
   }
 
+  boolean hasSelectIn() {
+    return selectInJoins.size() > 0;
+  }
+
+  List<Column.Reference> getPrefetch() {
+    return prefetch;
+  }
+
+  boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * Load the select-in joins for the given batch of records of the primary
+   * model. A separate query is run for each of the joins, filtering the
+   * children by the ids of the records, and the children are attached to
+   * their parent records.
+   *
+   * @param session The session on which the queries are run
+   * @param records The records retrieved by this query
+   */
+  @SuppressWarnings("unchecked")
+  void loadSelectIn(JDBCSession session, List<? extends Model> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+
+    Map<Long, ModelInstance> parents = new LinkedHashMap<>();
+    for(Model record:records) {
+      parents.put(record.getId(), (ModelInstance)record);
+    }
+    List<Long> ids = new ArrayList<>(parents.keySet());
+
+    for(Query.Join join:selectInJoins) {
+      Relation.HasMany relation = (Relation.HasMany) join.getReference();
+      for(ModelInstance parent:parents.values()) {
+        parent.initRelation(relation);
+      }
+
+      ModelStructure<ModelIntermediate> intermediate = relation.getIntermediateTable();
+      if (intermediate == null) {
+        // The children refer to the parent directly
+        Column fk = join.getModel().getColumn(relation.getTargetFieldName());
+        for(int start = 0; start < ids.size(); start += SELECT_IN_BATCH) {
+          Query.Builder builder = createSelectInBuilder(join, fk, fk.in(Query.Parameter.batch(ids, start, SELECT_IN_BATCH)));
+          List<ModelInstance> children = new JDBCQuery<>(driver, builder).execute(session).toList();
+          for(ModelInstance child:children) {
+            ModelInstance parent = parents.get(child.get(fk));
+            if (parent != null) {
+              parent.set(relation, child.getId(), child);
+            }
+          }
+        }
+      } else {
+        // Find out the pairs from the intermediate table first
+        Column source = intermediate.getColumn(relation.getSourceFieldName());
+        Column target = intermediate.getColumn(relation.getTargetFieldName());
+        if (source == null || target == null) {
+          throw new ModelException(relation.getSourceType().getType(),
+                  "The intermediate table " + intermediate.getTableName() + " doesn't have the fields "
+                          + relation.getSourceFieldName() + " and " + relation.getTargetFieldName());
+        }
+        Map<Long, List<Long>> targetParents = new LinkedHashMap<>();
+        for(int start = 0; start < ids.size(); start += SELECT_IN_BATCH) {
+          Query.Builder<ModelIntermediate> pairs = intermediate.query();
+          pairs.where(source.in(Query.Parameter.batch(ids, start, SELECT_IN_BATCH)));
+          List<Query.Tuple> tuples = pairs.groupBy(source, target).execute(session);
+          for(Query.Tuple tuple:tuples) {
+            Long targetId = (Long)tuple.get(1);
+            List<Long> list = targetParents.get(targetId);
+            if (list == null) {
+              list = new ArrayList<>();
+              targetParents.put(targetId, list);
+            }
+            list.add((Long)tuple.get(0));
+          }
+        }
+
+        // And then the target records
+        Column pk = join.getModel().getColumn(0);
+        List<Long> targetIds = new ArrayList<>(targetParents.keySet());
+        for(int start = 0; start < targetIds.size(); start += SELECT_IN_BATCH) {
+          Query.Builder builder = createSelectInBuilder(join, null, pk.in(Query.Parameter.batch(targetIds, start, SELECT_IN_BATCH)));
+          List<ModelInstance> children = new JDBCQuery<>(driver, builder).execute(session).toList();
+          for(ModelInstance child:children) {
+            for(Long parentId:targetParents.get(child.getId())) {
+              parents.get(parentId).set(relation, child.getId(), child);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the query builder for a select-in join, with the filter, ordering,
+   * projection and the child joins of the join
+   *
+   * @param join The select-in join
+   * @param linkColumn The column needed for linking the children to the parent
+   * @param inFilter The filter on the batch of ids
+   * @return The query builder
+   */
+  @SuppressWarnings("unchecked")
+  private Query.Builder createSelectInBuilder(Query.Join join, Column linkColumn, Query.Filter inFilter) {
+    Column[] columns = null;
+    Set<Column> fields = join.getFields();
+    if (fields != null) {
+      Set<Column> projection = new LinkedHashSet<>(fields);
+      if (linkColumn != null) {
+        projection.add(linkColumn);
+      }
+      // A single null column retrieves only the primary key
+      columns = projection.isEmpty() ? new Column[] { null } : projection.toArray(new Column[projection.size()]);
+    }
+
+    Query.Builder builder = new Query.Builder(join.getModel(), columns);
+    Query.Filter filter = join.filter();
+    if (filter != null && filter.getOperationCount() > 0) {
+      builder.where(filter).and(inFilter);
+    } else {
+      builder.where(inFilter);
+    }
+    builder.getOrderBy().addAll(join.getOrderBy());
+    builder.getJoins().addAll(join.getJoinChildren());
+    if (readOnly) {
+      builder.readOnly();
+    }
+    return builder;
+  }
+
   public String toString() {
     return sql;
   }
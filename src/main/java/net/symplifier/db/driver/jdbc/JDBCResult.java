@@ -3,9 +3,12 @@ package net.symplifier.db.driver.jdbc;
 import net.symplifier.db.*;
 import net.symplifier.db.exceptions.DatabaseException;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 /**
@@ -17,22 +20,112 @@ public class JDBCResult<T extends Model> implements Query.Result<T> {
 
   private final ResultSet resultSet;
   private final JDBCQuery<T> query;
+  private final JDBCSession session;
+  private PreparedStatement statement;
 
   private boolean eof;
 
-  public JDBCResult(JDBCQuery<T> query, ResultSet resultSet) {
+  /* The last record retrieved, used for the continuation token */
+  private T last;
+
+  /* The records read ahead for loading the select-in joins and the
+     references in batches */
+  private final Deque<T> pending = new ArrayDeque<>();
+  private final List<Column.Reference> prefetch;
+
+  /* The records related to the record being read by a read only query, to be
+     locked once the record is complete */
+  private final List<ModelInstance> detached;
+
+  /* The identity map of the session, not used by the read only queries */
+  private final IdentityMap identities;
+
+  public JDBCResult(JDBCQuery<T> query, JDBCSession session,
+                    PreparedStatement statement, ResultSet resultSet) {
     this.query = query;
+    this.session = session;
+    this.statement = statement;
     this.resultSet = resultSet;
+    this.prefetch = new ArrayList<>(query.getPrefetch());
+    this.detached = query.isReadOnly() ? new ArrayList<>() : null;
+    this.identities = query.isReadOnly() ? null : session.getIdentityMap();
+    session.onResultOpen(this);
 
     try {
       eof = !resultSet.next();
     } catch(SQLException e) {
+      close();
       throw new DatabaseException("Error while moving through SQL result", e);
     }
+
+    if (eof) {
+      close();
+    }
+  }
+
+  /**
+   * Closes the underlying result set and gives back the statement to the
+   * statement cache of the connection. The result is closed automatically
+   * once all the records have been read.
+   */
+  @Override
+  public void close() {
+    pending.clear();
+    if (statement == null) {
+      return;
+    }
+
+    try {
+      resultSet.close();
+    } catch(SQLException e) {
+      JDBCSession.LOGGER.error("Error while closing result set", e);
+    }
+    session.releaseStatement(statement);
+    session.onResultClose(this);
+    statement = null;
+    eof = true;
   }
 
   @Override
   public T next() {
+    T res;
+    if (query.hasSelectIn() || prefetch.size() > 0) {
+      // The select-in joins and the references are loaded for a batch of
+      // records at a time
+      if (pending.isEmpty()) {
+        List<T> batch = new ArrayList<>();
+        T rec;
+        while(batch.size() < JDBCQuery.SELECT_IN_BATCH && (rec = read()) != null) {
+          batch.add(rec);
+        }
+        query.loadSelectIn(session, batch);
+        for(Column.Reference reference:prefetch) {
+          reference.prefetch(batch, query.isReadOnly());
+        }
+        pending.addAll(batch);
+      }
+      res = pending.poll();
+    } else {
+      res = read();
+    }
+
+    if (res != null) {
+      last = res;
+      if (detached != null) {
+        // Locked only now as the select-in joins add to the record
+        res.lock();
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Read the next record of the primary model from the result set
+   *
+   * @return The record or {@code null} at the end of the result
+   */
+  @SuppressWarnings("unchecked")
+  private T read() {
     if (eof) {
       return null;
     }
@@ -53,7 +146,7 @@ public class JDBCResult<T extends Model> implements Query.Result<T> {
     try {
       do {
         // We expect as many data as the number of fields that we have defined
-        ModelInstance r = root.load(resultSet, res);
+        ModelInstance r = root.load(resultSet, res, detached, identities);
         if (r == null) {
           // Result set is at the next row
           break;
@@ -64,12 +157,48 @@ public class JDBCResult<T extends Model> implements Query.Result<T> {
         eof = !resultSet.next();
       } while (!eof);
     } catch(SQLException e) {
+      close();
       throw new DatabaseException("Error while retrieving data from Query", e);
     }
 
+    if (detached != null) {
+      for(ModelInstance related:detached) {
+        related.lock();
+      }
+      detached.clear();
+    }
+
+    if (eof) {
+      close();
+    }
+
     return (T)res;
   }
 
+  @Override
+  @SafeVarargs
+  public final JDBCResult<T> prefetch(Column.Reference<? super T, ?> ... references) {
+    for(Column.Reference<? super T, ?> reference:references) {
+      prefetch.add(reference);
+    }
+    return this;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public String getContinuationToken() {
+    List<Column> seekColumns = query.getSeekColumns();
+    if (seekColumns == null || last == null) {
+      return null;
+    }
+
+    Object[] values = new Object[seekColumns.size()];
+    for(int i=0; i<values.length; ++i) {
+      values[i] = last.get(seekColumns.get(i));
+    }
+    return SeekToken.encode(values);
+  }
+
 
   @Override
   public List<T> toList() {
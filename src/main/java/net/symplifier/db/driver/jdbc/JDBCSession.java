@@ -1,13 +1,13 @@
 package net.symplifier.db.driver.jdbc;
 
 import net.symplifier.db.*;
+import net.symplifier.db.exceptions.ConcurrentUpdateException;
 import net.symplifier.db.exceptions.DatabaseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * A JDBCSession responsible for providing connections on a per thread basis
@@ -20,14 +20,77 @@ public class JDBCSession extends DBSession {
   private final JDBCDriver driver;
   private final Connection connection;
 
-  // keep track of all the prepared statements that need to be closed when
-  // the session ends
+  // The statements are prepared on the physical connection and cached there,
+  // so that they survive the connection going back to the pool
+  private final Connection physicalConnection;
+  private final StatementCache statementCache;
 
-  private List<JDBCQuery.Prepared> preparedList = new ArrayList<>();
+  // keep track of all the results that are still open, so that their
+  // statements could be released when the session ends
+  private final Set<JDBCResult> openResults = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // The rows whose inserts have been deferred in batch mode, grouped by the
+  // model structure so that a single statement could be used for each group
+  private final Map<ModelStructure, List<ModelRow>> pendingInserts = new LinkedHashMap<>();
+  // The same rows, to find out if a row saved again before the flush is
+  // already waiting to be inserted
+  private final Set<ModelRow> pendingRows = Collections.newSetFromMap(new IdentityHashMap<>());
+  private boolean batchInserts = false;
 
   public JDBCSession(JDBCDriver driver, Connection connection) {
     this.driver = driver;
     this.connection = connection;
+    this.physicalConnection = JDBCDriver.getPhysicalConnection(connection);
+    this.statementCache = driver.getStatementCache(physicalConnection);
+  }
+
+  /**
+   * Retrieve a prepared statement from the statement cache of the connection.
+   * The statement must be given back through {@link #releaseStatement(PreparedStatement)}
+   * and must not be closed.
+   *
+   * @param sql The SQL text
+   * @param autoGeneratedKeys Either {@link Statement#RETURN_GENERATED_KEYS}
+   *                          or {@link Statement#NO_GENERATED_KEYS}
+   * @return The prepared statement
+   * @throws SQLException
+   */
+  public PreparedStatement acquireStatement(String sql, int autoGeneratedKeys) throws SQLException {
+    return statementCache.acquire(physicalConnection, sql, autoGeneratedKeys);
+  }
+
+  public void releaseStatement(PreparedStatement statement) {
+    if (statement != null) {
+      statementCache.release(statement);
+    }
+  }
+
+  void onResultOpen(JDBCResult result) {
+    openResults.add(result);
+  }
+
+  void onResultClose(JDBCResult result) {
+    openResults.remove(result);
+  }
+
+  /**
+   * Switch the batch insert mode. In batch mode the inserts are not sent to
+   * the database immediately, but are grouped by their model and sent using
+   * multi-row INSERT statements (or JDBC batches if the driver doesn't support
+   * them) when the session is flushed or committed. Switching off the batch
+   * mode flushes the pending inserts.
+   *
+   * @param batchInserts {@code true} to defer the inserts
+   */
+  public void setBatchInserts(boolean batchInserts) {
+    if (!batchInserts) {
+      flush();
+    }
+    this.batchInserts = batchInserts;
+  }
+
+  public boolean isBatchInserts() {
+    return batchInserts;
   }
 
   public void doBeginTransaction() {
@@ -39,6 +102,9 @@ public class JDBCSession extends DBSession {
   }
 
   public void doRollbackTransaction() {
+    // Nothing of the pending inserts has reached the database yet
+    pendingInserts.clear();
+    pendingRows.clear();
     try {
       this.connection.rollback();
     } catch(SQLException e) {
@@ -56,16 +122,11 @@ public class JDBCSession extends DBSession {
 
   public void close() {
     try {
-      // Close all the prepared statements
-      for(JDBCQuery.Prepared p:preparedList) {
-        try {
-          p.statement.close();
-        } catch(SQLException e) {
-          LOGGER.error("Session closing. Error while closing prepared statement", e);
-        }
+      // Close all the result sets, giving back their statements to the cache
+      for(JDBCResult result:new ArrayList<>(openResults)) {
+        result.close();
       }
 
-      // Close all the result sets
       this.connection.close();
     } catch (SQLException e) {
       e.printStackTrace();
@@ -76,45 +137,42 @@ public class JDBCSession extends DBSession {
   @Override
   public <T extends Model> JDBCQuery<T>.Prepared prepare(Query<T> query) {
     JDBCQuery<T> q = (JDBCQuery<T>) query;
-    try {
-      String sql = q.getSQL();
-      LOGGER.debug("Executing SQL - " + sql);
-      PreparedStatement stmt = connection.prepareStatement(sql);
-      if (stmt == null) {
-        return null;
-      } else {
-        JDBCQuery<T>.Prepared prepared = q.new Prepared(stmt);
-        preparedList.add(prepared);
-        return prepared;
-      }
-    } catch(SQLException e) {
-      throw new DatabaseException("Error while preparing sql", e);
-    }
+
+    // The query must be able to see the rows inserted in this session
+    doFlush();
+    // The statement is retrieved from the cache only when the query is
+    // executed, so that a prepared query doesn't hold on to it
+    return q.new Prepared(this);
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public void doInsert(ModelRow row) {
     ModelStructure structure = row.getStructure();
-    SQLBuilder sql = new SQLBuilder();
-
+    if (batchInserts) {
+      // A row saved again before the flush is inserted only once, with the
+      // values it has at the time of the flush
+      if (!pendingRows.add(row)) {
+        return;
+      }
+      List<ModelRow> rows = pendingInserts.get(structure);
+      if (rows == null) {
+        rows = new ArrayList<>();
+        pendingInserts.put(structure, rows);
+      }
+      rows.add(row);
+      return;
+    }
 
+    JDBCStatements statements = driver.getStatements(structure);
     boolean needId = row.get(0) == null;
 
-    sql.append("INSERT INTO ").append(structure);
-
-    sql.append(structure.getColumns(), row.getData(), needId?1:0);
-
-    String sqlText = sql.getSQL();
-    System.out.println(sqlText);
-    try (PreparedStatement statement = connection.prepareStatement(sqlText,
-              needId ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS )) {
-      List<Query.Parameter> parameters = sql.getParameters();
-      for (int i = 0; i < parameters.size(); ++i) {
-        Query.Parameter parameter = parameters.get(i);
-        JDBCParameter p = (JDBCParameter) parameter.getSetter();
-        p.set(statement, i + 1, parameter.getDefault());
-      }
+    String sqlText = statements.getInsertSql(needId);
+    LOGGER.debug("Executing SQL - " + sqlText);
+    PreparedStatement statement = null;
+    try {
+      statement = acquireStatement(sqlText,
+              needId ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+      statements.bindInsert(statement, 1, row, needId);
 
       int affectedRows = statement.executeUpdate();
       if (affectedRows == 0) {
@@ -129,54 +187,209 @@ public class JDBCSession extends DBSession {
       }
     } catch(SQLException e) {
       throw new DatabaseException("An error occurred while trying to insert record", e);
+    } finally {
+      releaseStatement(statement);
     }
 
     row.clearFlag();
   }
 
   @Override
-  @SuppressWarnings("unchecked")
-  public void doUpdate(ModelRow row, long id) {
-    ModelStructure structure = row.getStructure();
-    SQLBuilder updateSql = new SQLBuilder();
-
-    updateSql.append("UPDATE ").append(structure);
-    updateSql.append(" SET ");
-    boolean first = true;
-    for(int i=1; i<structure.getColumnCount(); ++i) {
-      // We will update only the modified field
-      if (!row.isModified(i)) {
-        continue;
+  public void doFlush() {
+    if (pendingInserts.isEmpty()) {
+      return;
+    }
+
+    try {
+      for (Map.Entry<ModelStructure, List<ModelRow>> entry : pendingInserts.entrySet()) {
+        // The rows that already have their primary key (parent level rows
+        // of a hierarchy) are inserted separately from the ones that need a
+        // generated key as they use a different set of columns
+        List<ModelRow> withId = new ArrayList<>();
+        List<ModelRow> withoutId = new ArrayList<>();
+        for (ModelRow row : entry.getValue()) {
+          if (row.get(0) == null) {
+            withoutId.add(row);
+          } else {
+            withId.add(row);
+          }
+        }
+
+        JDBCStatements statements = driver.getStatements(entry.getKey());
+        insertBatch(statements, withId, false);
+        insertBatch(statements, withoutId, true);
       }
-      Column col = structure.getColumn(i);
-      // need to add a ',' after the first
-      if (!first) {
-        updateSql.append(',');
+    } finally {
+      pendingInserts.clear();
+      pendingRows.clear();
+    }
+  }
+
+  private void insertBatch(JDBCStatements statements, List<ModelRow> rows, boolean needId) {
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    int maxParameters = driver.getMaxParameters();
+    if (maxParameters > 0 && driver.isMultiRowInserts() && (!needId || supportsMultiRowGeneratedKeys())) {
+      // Use multi-row INSERT statements with as many rows as the database
+      // allows in a single statement
+      int columnCount = statements.getStructure().getColumnCount() - (needId ? 1 : 0);
+      int perStatement = Math.min(driver.getMaxInsertRows(),
+              Math.max(1, maxParameters / Math.max(1, columnCount)));
+      for (int start = 0; start < rows.size(); start += perStatement) {
+        insertMultiRow(statements, rows.subList(start, Math.min(rows.size(), start + perStatement)), needId);
+      }
+    } else {
+      executeBatch(statements, rows, needId);
+    }
+
+    for (ModelRow row : rows) {
+      row.clearFlag();
+    }
+  }
+
+  private boolean supportsMultiRowGeneratedKeys() {
+    try {
+      return driver.supportsMultiRowGeneratedKeys(connection);
+    } catch (SQLException e) {
+      throw new DatabaseException("Could not check the generated keys support of the database", e);
+    }
+  }
+
+  private void insertMultiRow(JDBCStatements statements, List<ModelRow> rows, boolean needId) {
+    String sqlText = statements.getInsertSql(rows.size(), needId);
+    LOGGER.debug("Inserting " + rows.size() + " rows - " + sqlText);
+
+    PreparedStatement statement = null;
+    try {
+      statement = needId
+              ? driver.prepareInsert(this, sqlText, statements.getStructure())
+              : acquireStatement(sqlText, Statement.NO_GENERATED_KEYS);
+      int position = 1;
+      for (ModelRow row : rows) {
+        position = statements.bindInsert(statement, position, row, needId);
+      }
+
+      if (needId) {
+        long[] ids = driver.executeInsert(statement, rows.size());
+        for (int i = 0; i < ids.length; ++i) {
+          rows.get(i).set(0, ids[i]);
+        }
       } else {
-        first = false;
+        statement.executeUpdate();
       }
-      updateSql.append(col, row.get(i));
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while trying to insert records", e);
+    } finally {
+      releaseStatement(statement);
     }
+  }
 
-    updateSql.append(" WHERE ");
-    updateSql.append(structure.getColumn(0), row.get(0));
+  private void executeBatch(JDBCStatements statements, List<ModelRow> rows, boolean needId) {
+    String sqlText = statements.getInsertSql(needId);
+    LOGGER.debug("Executing batch of " + rows.size() + " - " + sqlText);
 
-    String sql = updateSql.getSQL();
-    System.out.println(sql);
+    PreparedStatement statement = null;
+    try {
+      statement = acquireStatement(sqlText,
+              needId ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+
+      // Not all the JDBC drivers are able to provide the generated keys for
+      // a batch, in which case, we execute the same statement for each row
+      boolean batch = !needId || driver.supportsBatchGeneratedKeys();
+      for (ModelRow row : rows) {
+        statements.bindInsert(statement, 1, row, needId);
+
+        if (batch) {
+          statement.addBatch();
+        } else {
+          if (statement.executeUpdate() == 0) {
+            throw new DatabaseException("Inserting record failed", null);
+          }
+          try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+            if (generatedKeys.next()) {
+              row.set(0, generatedKeys.getLong(1));
+            }
+          }
+        }
+      }
 
-    // hit the database if we find any column to update
-    if(!first) {
-      try(PreparedStatement statement = connection.prepareStatement(sql)) {
-        List<Query.Parameter> parameters = updateSql.getParameters();
-        for (int i = 0; i < parameters.size(); ++i) {
-          Query.Parameter parameter = parameters.get(i);
-          JDBCParameter p = (JDBCParameter) parameter.getSetter();
-          p.set(statement, i + 1, parameter.getDefault());
+      if (batch) {
+        statement.executeBatch();
+        if (needId) {
+          try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+            for (ModelRow row : rows) {
+              if (!generatedKeys.next()) {
+                throw new DatabaseException("Generated keys not available for all the rows in batch", null);
+              }
+              row.set(0, generatedKeys.getLong(1));
+            }
+          }
         }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while trying to insert records in batch", e);
+    } finally {
+      releaseStatement(statement);
+    }
+  }
 
-        statement.executeUpdate();
+  @Override
+  public boolean doLoad(ModelRow row, long id) {
+    // The row may still be waiting to be inserted
+    doFlush();
+
+    JDBCStatements statements = driver.getStatements(row.getStructure());
+    PreparedStatement statement = null;
+    try {
+      statement = acquireStatement(statements.getSelectSql(), Statement.NO_GENERATED_KEYS);
+      statement.setLong(1, id);
+      try (ResultSet rs = statement.executeQuery()) {
+        if (!rs.next()) {
+          return false;
+        }
+        statements.readRow(rs, row);
+        return true;
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("An error occurred while trying to load record", e);
+    } finally {
+      releaseStatement(statement);
+    }
+  }
+
+  @Override
+  public void doUpdate(ModelRow row, long id) {
+    // The row (or a row of the hierarchy) may still be waiting to be inserted
+    doFlush();
+
+    JDBCStatements statements = driver.getStatements(row.getStructure());
+    long modificationBits = row.getModificationBits();
+    int version = statements.getVersionIndex();
+    Long current = version > 0 ? (Long) row.get(version) : null;
+    String sql = statements.getUpdateSql(modificationBits, current == null);
+
+    // hit the database if we find any column to update
+    if(sql != null) {
+      LOGGER.debug("Executing SQL - " + sql);
+      PreparedStatement statement = null;
+      try {
+        statement = acquireStatement(sql, Statement.NO_GENERATED_KEYS);
+        statements.bindUpdate(statement, row, modificationBits);
+        int affectedRows = statement.executeUpdate();
+
+        if (version > 0) {
+          if (affectedRows == 0) {
+            throw new ConcurrentUpdateException(row.getStructure().getTableName(), id, current);
+          }
+          // A row without a version starts with the initial version
+          row.set(version, current == null ? Column.Version.INITIAL : current + 1);
+        }
       } catch (SQLException e) {
         throw new DatabaseException("An error occurred while trying to update record", e);
+      } finally {
+        releaseStatement(statement);
       }
     }
 
@@ -189,24 +402,27 @@ public class JDBCSession extends DBSession {
 
   @Override
   public void doDelete(ModelRow row) {
-    ModelStructure structure = row.getStructure();
-    StringBuilder sql = new StringBuilder();
-    sql.append("DELETE FROM ");
-    sql.append(driver.formatFieldName(structure.getTableName()));
-    sql.append(" WHERE ");
-    sql.append(structure.getPrimaryKeyField());
-    sql.append('=');
-    sql.append(row.getId());
+    // The row must be inserted before it could be deleted
+    doFlush();
 
+    JDBCStatements statements = driver.getStatements(row.getStructure());
+    PreparedStatement statement = null;
     try {
-      connection.createStatement().execute(sql.toString());
+      statement = acquireStatement(statements.getDeleteSql(), Statement.NO_GENERATED_KEYS);
+      statement.setLong(1, row.getId());
+      statement.executeUpdate();
     } catch(SQLException e) {
       throw new DatabaseException("An error occurred while trying to delete record", e);
+    } finally {
+      releaseStatement(statement);
     }
   }
 
   @Override
   public void doDeleteIntermediate(ModelStructure intermediate, Relation.HasMany ref, Model refSource, Model refTarget) {
+    // Both the records need their ids
+    doFlush();
+
     StringBuilder sql = new StringBuilder();
     sql.append("DELETE FROM ");
     sql.append(driver.formatFieldName(intermediate.getTableName()));
@@ -228,6 +444,9 @@ public class JDBCSession extends DBSession {
 
   @Override
   public void doUpdateIntermediate(ModelStructure intermediate, Relation.HasMany ref, Model refSource, Model refTarget) {
+    // Both the records need their ids
+    doFlush();
+
     StringBuilder sql = new StringBuilder();
     sql.append("INSERT INTO ");
     sql.append(driver.formatFieldName(intermediate.getTableName()));
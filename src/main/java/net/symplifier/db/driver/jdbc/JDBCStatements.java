@@ -0,0 +1,260 @@
+package net.symplifier.db.driver.jdbc;
+
+import net.symplifier.db.ModelRow;
+import net.symplifier.db.ModelStructure;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The SQL statements used for writing the rows of a model, compiled once per
+ * {@link ModelStructure}. The values are bound directly through the
+ * {@link JDBCParameter} of the columns by their index, without going through
+ * any intermediate parameter objects.
+ *
+ * <p>
+ *   The UPDATE statements depend on the fields that have been modified and
+ *   are compiled on demand and cached by the modification bits of the row
+ * </p>
+ */
+public class JDBCStatements {
+  private final JDBCDriver driver;
+  private final ModelStructure structure;
+
+  /* The parameter setters of the columns by their index */
+  private final JDBCParameter[] setters;
+  /* The field getters of the columns by their index */
+  private final JDBCField[] getters;
+
+  /* The INSERT statement for the rows that need a generated primary key */
+  private final String insertSql;
+  /* The INSERT statement for the rows that already have the primary key */
+  private final String insertWithIdSql;
+  private final String deleteSql;
+  /* The SELECT statement for loading a single row by its primary key */
+  private final String selectSql;
+
+  /* The multi-row INSERT statements by their row count */
+  private final ConcurrentHashMap<Integer, String> multiInsertSql = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, String> multiInsertWithIdSql = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<Long, String> updateSql = new ConcurrentHashMap<>();
+  /* The UPDATE statements for the rows that don't have a version yet */
+  private final ConcurrentHashMap<Long, String> nullVersionUpdateSql = new ConcurrentHashMap<>();
+
+  /* The index of the version column, 0 if the model doesn't have one */
+  private final int versionIndex;
+
+  @SuppressWarnings("unchecked")
+  public JDBCStatements(JDBCDriver driver, ModelStructure structure) {
+    this.driver = driver;
+    this.structure = structure;
+
+    List<net.symplifier.db.Column> columns = structure.getColumns();
+    setters = new JDBCParameter[columns.size()];
+    getters = new JDBCField[columns.size()];
+    for(int i=0; i<setters.length; ++i) {
+      setters[i] = (JDBCParameter) columns.get(i).getParameterSetter();
+      getters[i] = (JDBCField) columns.get(i).getField();
+    }
+
+    net.symplifier.db.Column version = structure.getVersionColumn();
+    versionIndex = version == null ? 0 : version.getIndex();
+
+    insertSql = buildInsertSql(1, true);
+    insertWithIdSql = buildInsertSql(1, false);
+
+    deleteSql = "DELETE FROM " + driver.formatFieldName(structure.getTableName())
+            + " WHERE " + driver.formatFieldName(structure.getPrimaryKeyField()) + "=?";
+
+    StringBuilder select = new StringBuilder();
+    select.append("SELECT ");
+    for(int i=0; i<columns.size(); ++i) {
+      if (i > 0) {
+        select.append(',');
+      }
+      select.append(driver.formatFieldName(columns.get(i).getFieldName()));
+    }
+    select.append(" FROM ").append(driver.formatFieldName(structure.getTableName()));
+    select.append(" WHERE ").append(driver.formatFieldName(structure.getPrimaryKeyField())).append("=?");
+    selectSql = select.toString();
+  }
+
+  public ModelStructure getStructure() {
+    return structure;
+  }
+
+  /**
+   * Retrieve the INSERT statement for a single row
+   *
+   * @param needId {@code true} if the primary key is to be generated by the
+   *               database
+   * @return The SQL text
+   */
+  public String getInsertSql(boolean needId) {
+    return needId ? insertSql : insertWithIdSql;
+  }
+
+  /**
+   * Retrieve the multi-row INSERT statement, compiled on demand and cached by
+   * the row count
+   *
+   * @param rowCount The number of rows to be inserted by the statement
+   * @param needId {@code true} if the primary key is to be generated by the
+   *               database
+   * @return The SQL text
+   */
+  public String getInsertSql(int rowCount, boolean needId) {
+    ConcurrentHashMap<Integer, String> cache = needId ? multiInsertSql : multiInsertWithIdSql;
+    String sql = cache.get(rowCount);
+    if (sql == null) {
+      sql = buildInsertSql(rowCount, needId);
+      cache.putIfAbsent(rowCount, sql);
+    }
+    return sql;
+  }
+
+  @SuppressWarnings("unchecked")
+  private String buildInsertSql(int rowCount, boolean needId) {
+    SQLBuilder sql = new SQLBuilder();
+    sql.append("INSERT INTO ").append(driver.formatFieldName(structure.getTableName()));
+    sql.appendInsert(structure.getColumns(), needId ? 1 : 0, rowCount);
+    return sql.getSQL();
+  }
+
+  public String getDeleteSql() {
+    return deleteSql;
+  }
+
+  public String getSelectSql() {
+    return selectSql;
+  }
+
+  /**
+   * Reads all the columns of the row from the result of the SELECT statement
+   * retrieved through {@link #getSelectSql()}
+   *
+   * @param rs The result set positioned at the row
+   * @param row The row to be populated
+   * @throws SQLException
+   */
+  public void readRow(ResultSet rs, ModelRow row) throws SQLException {
+    for(int i=0; i<getters.length; ++i) {
+      row.set(i, getters[i].get(rs, i + 1), false);
+    }
+    row.setPartial(false);
+  }
+
+  /**
+   * The index of the version column of the model
+   *
+   * @return The index or 0 if the model doesn't have a version column
+   */
+  public int getVersionIndex() {
+    return versionIndex;
+  }
+
+  /**
+   * Retrieve the UPDATE statement that updates the modified fields. With a
+   * version column, the statement increments the version and updates the row
+   * only if it still has the version it was read with. A row without a
+   * version (stored before the version column was introduced) is matched with
+   * a NULL version and gets the {@link net.symplifier.db.Column.Version#INITIAL}
+   * version.
+   *
+   * @param modificationBits The modification bits of the row
+   * @param nullVersion {@code true} if the row doesn't have a version
+   * @return The SQL text or {@code null} if no field other than the primary key
+   *         (and the version) has been modified
+   */
+  public String getUpdateSql(long modificationBits, boolean nullVersion) {
+    // The primary key and the version are never updated as given
+    long bits = modificationBits & ~1L & ~(1L << versionIndex);
+    if (bits == 0) {
+      return null;
+    }
+
+    ConcurrentHashMap<Long, String> cache = nullVersion && versionIndex > 0 ? nullVersionUpdateSql : updateSql;
+    String sql = cache.get(bits);
+    if (sql == null) {
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE ");
+      b.append(driver.formatFieldName(structure.getTableName()));
+      b.append(" SET ");
+      boolean first = true;
+      for(int i=1; i<setters.length; ++i) {
+        if ((bits & (1L << i)) == 0) {
+          continue;
+        }
+        if (!first) {
+          b.append(',');
+        } else {
+          first = false;
+        }
+        b.append(driver.formatFieldName(structure.getColumn(i).getFieldName()));
+        b.append("=?");
+      }
+
+      String version = null;
+      if (versionIndex > 0) {
+        version = driver.formatFieldName(structure.getColumn(versionIndex).getFieldName());
+        b.append(',').append(version).append("=COALESCE(").append(version).append(",0)+1");
+      }
+
+      b.append(" WHERE ");
+      b.append(driver.formatFieldName(structure.getPrimaryKeyField()));
+      b.append("=?");
+      if (version != null) {
+        b.append(" AND ").append(version).append(nullVersion ? " IS NULL" : "=?");
+      }
+
+      sql = b.toString();
+      cache.putIfAbsent(bits, sql);
+    }
+    return sql;
+  }
+
+  /**
+   * Binds the values of the row for the INSERT statement
+   *
+   * @param statement The INSERT statement
+   * @param position The position of the first parameter of the row (1 based)
+   * @param row The row to be inserted
+   * @param needId {@code true} if the primary key is not part of the statement
+   * @return The position of the parameter following the row
+   * @throws SQLException
+   */
+  @SuppressWarnings("unchecked")
+  public int bindInsert(PreparedStatement statement, int position, ModelRow row, boolean needId) throws SQLException {
+    for(int i = needId ? 1 : 0; i < setters.length; ++i) {
+      setters[i].set(statement, position++, row.get(i));
+    }
+    return position;
+  }
+
+  /**
+   * Binds the modified values of the row, the primary key and the version for
+   * the UPDATE statement retrieved through {@link #getUpdateSql(long, boolean)}
+   *
+   * @param statement The UPDATE statement
+   * @param row The row to be updated
+   * @param modificationBits The modification bits used for the statement
+   * @throws SQLException
+   */
+  @SuppressWarnings("unchecked")
+  public void bindUpdate(PreparedStatement statement, ModelRow row, long modificationBits) throws SQLException {
+    int position = 1;
+    for(int i=1; i<setters.length; ++i) {
+      if (i != versionIndex && (modificationBits & (1L << i)) != 0) {
+        setters[i].set(statement, position++, row.get(i));
+      }
+    }
+    setters[0].set(statement, position++, row.get(0));
+    if (versionIndex > 0 && row.get(versionIndex) != null) {
+      setters[versionIndex].set(statement, position, row.get(versionIndex));
+    }
+  }
+}
@@ -71,6 +71,41 @@ public class SQLBuilder {
     return this;
   }
 
+  /**
+   * Appends the column list and the VALUES clause with the placeholders for
+   * an insert statement with the given number of rows. Unlike the other
+   * append methods, no parameters are recorded, the values are expected to be
+   * bound directly.
+   *
+   * @param columns The columns of the model
+   * @param offset The index of the first column to be inserted
+   * @param rowCount The number of rows in the VALUES clause
+   * @return self chaining
+   */
+  public SQLBuilder appendInsert(List<Column> columns, int offset, int rowCount) {
+    StringBuilder values = new StringBuilder();
+    builder.append('(');
+    values.append('(');
+    for(int i=offset; i<columns.size(); ++i) {
+      if (i>offset) {
+        builder.append(',');
+        values.append(',');
+      }
+      builder.append(columns.get(i).getFieldName());
+      values.append('?');
+    }
+    values.append(')');
+    builder.append(") VALUES ");
+
+    for(int r=0; r<rowCount; ++r) {
+      if (r > 0) {
+        builder.append(',');
+      }
+      builder.append(values);
+    }
+    return this;
+  }
+
   public String getSQL() {
     return builder.toString();
   }
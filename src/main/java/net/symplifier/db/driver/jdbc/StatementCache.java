@@ -0,0 +1,153 @@
+package net.symplifier.db.driver.jdbc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * A cache of the prepared statements of a physical database connection, keyed
+ * by the SQL text. The cache outlives the sessions, so the statements are
+ * reused by all the sessions that get the same connection from the pool.
+ *
+ * <p>
+ *   The cache is bounded, the least recently used statement is closed when
+ *   the limit is reached. A statement is handed out to only one user at a time,
+ *   if the cached statement is already in use (the same query being iterated
+ *   in a nested loop), a new statement is prepared which is closed on release.
+ * </p>
+ */
+public class StatementCache {
+  public static final Logger LOGGER = LogManager.getLogger(StatementCache.class);
+
+  private final JDBCDriver driver;
+
+  /* The cached statements in the access order */
+  private final LinkedHashMap<String, PreparedStatement> statements;
+
+  /* The statements that are owned by this cache (present in the map) */
+  private final Set<PreparedStatement> cached = Collections.newSetFromMap(new IdentityHashMap<>());
+  /* The statements that have been handed out and not released yet */
+  private final Set<PreparedStatement> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  private long hits;
+  private long misses;
+
+  public StatementCache(JDBCDriver driver, final int limit) {
+    this.driver = driver;
+    this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() <= limit) {
+          return false;
+        }
+
+        PreparedStatement statement = eldest.getValue();
+        cached.remove(statement);
+        // A statement in use is closed once it is released
+        if (!inUse.contains(statement)) {
+          close(statement);
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Retrieve a prepared statement for the given SQL. The statement must be
+   * given back through {@link #release(PreparedStatement)} once it is not
+   * needed any more, it must not be closed.
+   *
+   * @param connection The physical connection to which this cache belongs
+   * @param sql The SQL text
+   * @param autoGeneratedKeys Either {@link Statement#RETURN_GENERATED_KEYS}
+   *                          or {@link Statement#NO_GENERATED_KEYS}
+   * @return The prepared statement
+   * @throws SQLException
+   */
+  public synchronized PreparedStatement acquire(Connection connection, String sql,
+                                                int autoGeneratedKeys) throws SQLException {
+    String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : "S:" + sql;
+
+    PreparedStatement statement = statements.get(key);
+    if (statement != null && !inUse.contains(statement)) {
+      hits += 1;
+      driver.recordStatementCache(true);
+    } else {
+      misses += 1;
+      driver.recordStatementCache(false);
+
+      boolean shared = statement != null;
+      statement = connection.prepareStatement(sql, autoGeneratedKeys);
+      if (!shared) {
+        statements.put(key, statement);
+        cached.add(statement);
+      }
+    }
+
+    inUse.add(statement);
+    return statement;
+  }
+
+  /**
+   * Give back the statement retrieved through {@link #acquire(Connection, String, int)}.
+   * The parameters and the batch of a cached statement are cleared for its
+   * next user, the statement is dropped from the cache if it cannot be reset.
+   *
+   * @param statement The statement that is not needed any more
+   */
+  public synchronized void release(PreparedStatement statement) {
+    inUse.remove(statement);
+    if (!cached.contains(statement)) {
+      close(statement);
+      return;
+    }
+
+    try {
+      statement.clearParameters();
+      statement.clearBatch();
+    } catch(SQLException e) {
+      LOGGER.warn("Could not reset the prepared statement, removed from the cache", e);
+      statements.values().remove(statement);
+      cached.remove(statement);
+      close(statement);
+    }
+  }
+
+  /**
+   * Closes all the statements in the cache
+   */
+  public synchronized void clear() {
+    for(PreparedStatement statement:cached) {
+      if (!inUse.contains(statement)) {
+        close(statement);
+      }
+    }
+    cached.clear();
+    statements.clear();
+  }
+
+  public synchronized int size() {
+    return statements.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private static void close(PreparedStatement statement) {
+    try {
+      statement.close();
+    } catch(SQLException e) {
+      LOGGER.error("Error while closing prepared statement", e);
+    }
+  }
+}
@@ -3,12 +3,37 @@ package net.symplifier.db.driver.jdbc.mysql;
 import net.symplifier.db.Schema;
 import net.symplifier.db.driver.jdbc.JDBCDriver;
 
+import java.sql.*;
+
 /**
  * Created by ranjan on 8/17/15.
  */
 public class MySQLDriver extends JDBCDriver {
+  /* The innodb_autoinc_lock_mode of the server, checked on the first use */
+  private volatile Boolean consecutiveIds;
 
   MySQLDriver(Schema schema, String uri, String username, String password) {
     super(schema, uri, username, password);
   }
+
+  @Override
+  protected int getMaxParameters() {
+    // The parameter count in the prepared statement protocol is 16 bit
+    return 65535;
+  }
+
+  @Override
+  protected boolean supportsMultiRowGeneratedKeys(Connection connection) throws SQLException {
+    // The generated keys of a multi-row INSERT are derived from the first id
+    // and the auto increment step, which holds only when the ids of a
+    // statement are not interleaved with the other statements (the lock
+    // mode 2 interleaves them)
+    if (consecutiveIds == null) {
+      try (Statement s = connection.createStatement();
+           ResultSet rs = s.executeQuery("SELECT @@innodb_autoinc_lock_mode")) {
+        consecutiveIds = rs.next() && rs.getInt(1) != 2;
+      }
+    }
+    return consecutiveIds;
+  }
 }
@@ -1,7 +1,12 @@
 package net.symplifier.db.driver.jdbc.postgres;
 
+import net.symplifier.db.ModelStructure;
 import net.symplifier.db.Schema;
 import net.symplifier.db.driver.jdbc.JDBCDriver;
+import net.symplifier.db.driver.jdbc.JDBCSession;
+import net.symplifier.db.exceptions.DatabaseException;
+
+import java.sql.*;
 
 /**
  * Created by ranjan on 8/17/15.
@@ -10,4 +15,42 @@ public class PostgreSQLDriver extends JDBCDriver {
   protected PostgreSQLDriver(Schema schema, String uri, String username, String password) {
     super(schema, uri, username, password);
   }
+
+  @Override
+  public boolean isLikeCaseSensitive() {
+    return true;
+  }
+
+  @Override
+  public boolean isNullsFirst() {
+    // The null values are larger than any other value
+    return false;
+  }
+
+  @Override
+  protected int getMaxParameters() {
+    // The parameter count in the bind message is a signed 16 bit integer
+    return 32767;
+  }
+
+  @Override
+  protected PreparedStatement prepareInsert(JDBCSession session, String sql,
+                                            ModelStructure structure) throws SQLException {
+    return session.acquireStatement(sql + " RETURNING " + structure.getPrimaryKeyField(),
+            Statement.NO_GENERATED_KEYS);
+  }
+
+  @Override
+  protected long[] executeInsert(PreparedStatement statement, int rowCount) throws SQLException {
+    long[] ids = new long[rowCount];
+    try (ResultSet rs = statement.executeQuery()) {
+      for (int i = 0; i < rowCount; ++i) {
+        if (!rs.next()) {
+          throw new DatabaseException("Generated keys not available for all the inserted rows", null);
+        }
+        ids[i] = rs.getLong(1);
+      }
+    }
+    return ids;
+  }
 }
@@ -1,7 +1,11 @@
 package net.symplifier.db.driver.jdbc.sqlite;
 
+import net.symplifier.db.ModelStructure;
 import net.symplifier.db.Schema;
 import net.symplifier.db.driver.jdbc.JDBCDriver;
+import net.symplifier.db.driver.jdbc.JDBCSession;
+
+import java.sql.*;
 
 /**
  * Created by ranjan on 8/17/15.
@@ -21,4 +25,47 @@ public class SqliteDriver extends JDBCDriver {
       return super.getTypeName(type);
     }
   }
+
+  @Override
+  protected boolean supportsBatchGeneratedKeys() {
+    // The sqlite driver only provides the last_insert_rowid() as the
+    // generated key
+    return false;
+  }
+
+  @Override
+  protected int getMaxParameters() {
+    // SQLITE_MAX_VARIABLE_NUMBER
+    return 999;
+  }
+
+  @Override
+  protected int getMaxInsertRows() {
+    // SQLITE_MAX_COMPOUND_SELECT, multi-row VALUES are compound selects
+    return 500;
+  }
+
+  @Override
+  protected PreparedStatement prepareInsert(JDBCSession session, String sql,
+                                            ModelStructure structure) throws SQLException {
+    return session.acquireStatement(sql, Statement.NO_GENERATED_KEYS);
+  }
+
+  @Override
+  protected long[] executeInsert(PreparedStatement statement, int rowCount) throws SQLException {
+    statement.executeUpdate();
+
+    // The writes are serialized in sqlite and the rows of a single statement
+    // get consecutive row ids, ending with the last_insert_rowid()
+    try (Statement s = statement.getConnection().createStatement();
+         ResultSet rs = s.executeQuery("SELECT last_insert_rowid()")) {
+      rs.next();
+      long last = rs.getLong(1);
+      long[] ids = new long[rowCount];
+      for (int i = 0; i < rowCount; ++i) {
+        ids[i] = last - rowCount + 1 + i;
+      }
+      return ids;
+    }
+  }
 }
@@ -0,0 +1,36 @@
+package net.symplifier.db.exceptions;
+
+/**
+ * Thrown when a row with a version column is updated after it has been
+ * changed by someone else since it was read. The update is not applied, the
+ * row needs to be read again before retrying.
+ */
+public class ConcurrentUpdateException extends DatabaseException {
+  private final String table;
+  private final long id;
+  private final Long version;
+
+  public ConcurrentUpdateException(String table, long id, Long version) {
+    super("The record " + id + " of " + table + " has been changed since version " + version, null);
+    this.table = table;
+    this.id = id;
+    this.version = version;
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * The version of the row that was being updated
+   *
+   * @return The version
+   */
+  public Long getVersion() {
+    return version;
+  }
+}
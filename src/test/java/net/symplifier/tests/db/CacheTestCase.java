@@ -0,0 +1,318 @@
+package net.symplifier.tests.db;
+
+import net.symplifier.db.annotations.Table;
+import net.symplifier.db.cache.CachePolicy;
+import net.symplifier.db.cache.Invalidation;
+import net.symplifier.db.cache.LongMap;
+import net.symplifier.db.cache.OffHeapStore;
+import net.symplifier.db.cache.TcpBus;
+import net.symplifier.db.cache.TinyLfuRowCache;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CacheTestCase {
+
+  @Table(cacheProvider = TinyLfuRowCache.Provider.class, cacheSize = 10)
+  private static class TinyLfuTable {
+  }
+
+  @Test
+  public void testCacheProviderOfTable() {
+    CachePolicy policy = CachePolicy.of(TinyLfuTable.class.getAnnotation(Table.class));
+    assertTrue(policy.getProvider() instanceof TinyLfuRowCache.Provider);
+    assertTrue(policy.create(null) instanceof TinyLfuRowCache);
+  }
+
+  @Test
+  public void testTinyLfuScanResistance() {
+    TinyLfuRowCache<Long, String> cache = new TinyLfuRowCache<>(100, k -> "Row " + k);
+
+    // The frequently used rows
+    for(int round=0; round<5; ++round) {
+      for(long k=0; k<50; ++k) {
+        assertEquals("Row " + k, cache.get(k));
+      }
+    }
+
+    // followed by a scan of the rows used only once
+    for(long k=1000; k<1500; ++k) {
+      cache.get(k);
+    }
+
+    assertTrue(cache.size() <= 100);
+    int retained = 0;
+    for(long k=0; k<50; ++k) {
+      if (cache.getIfPresent(k) != null) {
+        retained += 1;
+      }
+    }
+    assertTrue("The scan evicted the frequent rows", retained >= 45);
+  }
+
+  private static byte[] record(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String read(OffHeapStore store, long key) {
+    return store.get(key, buffer -> {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    });
+  }
+
+  @Test
+  public void testOffHeapSlabRecycling() {
+    // Three slabs, each holding two records of 32 bytes (12 bytes header)
+    OffHeapStore store = new OffHeapStore(192, 64);
+    for(long k=0; k<6; ++k) {
+      assertTrue(store.put(k, record("Record number " + k + "-----")));
+    }
+    assertEquals(6, store.size());
+    assertEquals(192, store.getAllocatedBytes());
+
+    // All the slabs are full, the oldest one is recycled
+    assertTrue(store.put(6, record("Record number 6-----")));
+    assertNull(read(store, 0));
+    assertNull(read(store, 1));
+    for(long k=2; k<7; ++k) {
+      assertEquals("Record number " + k + "-----", read(store, k));
+    }
+
+    // A record written again survives the recycling of its previous slab
+    assertTrue(store.put(2, record("Record updated 2----")));
+    assertTrue(store.put(7, record("Record number 7-----")));
+    assertEquals("Record updated 2----", read(store, 2));
+    assertNull(read(store, 3));
+    assertEquals(5, store.size());
+    assertEquals(192, store.getAllocatedBytes());
+  }
+
+  @Test
+  public void testOffHeapRecordLargerThanSlab() {
+    OffHeapStore store = new OffHeapStore(256, 64);
+    assertTrue(store.put(1, record("Small record")));
+
+    // The record does not fit in a slab and drops the previous copy
+    assertFalse(store.put(1, new byte[64]));
+    assertNull(read(store, 1));
+    assertEquals(0, store.size());
+
+    // A record filling the slab exactly is still stored
+    assertTrue(store.put(2, new byte[52]));
+    assertEquals(52, store.get(2L, buffer -> buffer.remaining()).intValue());
+  }
+
+  @Test
+  public void testInvalidationEncoding() {
+    // Unsorted, with the gaps of every varint length up to the largest id
+    List<Long> ids = Arrays.asList(300L, 1L, 2L, 129L, 1L << 21, 1L << 35, 1L << 56, Long.MAX_VALUE, 128L);
+    Invalidation message = new Invalidation(-42, "t\u00e4ble", ids);
+    byte[] bytes = message.encode();
+
+    // Decoded at an offset within a larger buffer
+    byte[] buffer = new byte[bytes.length + 10];
+    System.arraycopy(bytes, 0, buffer, 5, bytes.length);
+    Invalidation decoded = Invalidation.decode(buffer, 5, bytes.length);
+    assertNotNull(decoded);
+    assertEquals(-42, decoded.getOrigin());
+    assertEquals("t\u00e4ble", decoded.getTable());
+    assertArrayEquals(ids.stream().mapToLong(Long::longValue).sorted().toArray(), decoded.getIds());
+
+    // The close ids take a byte each
+    Invalidation close = new Invalidation(1, "t", Arrays.asList(1000L, 1001L, 1002L, 1003L));
+    assertEquals(4 + 8 + 2 + 1 + 4 + 2 + 3, close.encode().length);
+
+    // Neither a truncated message nor other data is taken for a message
+    assertNull(Invalidation.decode(bytes, 0, bytes.length - 1));
+    assertNull(Invalidation.decode(new byte[32], 0, 32));
+  }
+
+  @Test
+  public void testInvalidationSplit() {
+    List<Long> ids = new ArrayList<>();
+    for(long id=25; id>0; --id) {
+      ids.add(id * 1000);
+    }
+    Invalidation message = new Invalidation(7, "book", ids);
+    assertEquals(Collections.singletonList(message), message.split(25));
+
+    List<Invalidation> parts = message.split(10);
+    assertEquals(3, parts.size());
+    List<Long> joined = new ArrayList<>();
+    for(Invalidation part:parts) {
+      assertEquals(7, part.getOrigin());
+      assertEquals("book", part.getTable());
+      assertTrue(part.getIds().length <= 10);
+      for(long id:part.getIds()) {
+        joined.add(id);
+      }
+    }
+    assertEquals(5, parts.get(2).getIds().length);
+    Collections.sort(ids);
+    assertEquals(ids, joined);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  @Test
+  public void testTcpBusFraming() throws IOException, InterruptedException {
+    int port = freePort();
+    BlockingQueue<Invalidation> received = new LinkedBlockingQueue<>();
+    try (TcpBus receiver = new TcpBus(port, Collections.emptyList());
+         TcpBus sender = new TcpBus(freePort(), Collections.singletonList(new InetSocketAddress("localhost", port)))) {
+      receiver.subscribe(received::add);
+
+      // A large message with large gaps between the small ones, back to back
+      List<Long> large = new ArrayList<>();
+      for(long id=0; id<100000; ++id) {
+        large.add(id * 1000003);
+      }
+      sender.publish(new Invalidation(1, "first", Collections.singletonList(1L)));
+      sender.publish(new Invalidation(1, "large", large));
+      sender.publish(new Invalidation(1, "last", Collections.singletonList(Long.MAX_VALUE)));
+
+      Invalidation first = received.poll(10, TimeUnit.SECONDS);
+      Invalidation second = received.poll(10, TimeUnit.SECONDS);
+      Invalidation last = received.poll(10, TimeUnit.SECONDS);
+      assertNotNull(last);
+      assertEquals("first", first.getTable());
+      assertEquals("large", second.getTable());
+      assertEquals(100000, second.getIds().length);
+      assertEquals(99999L * 1000003, second.getIds()[99999]);
+      assertEquals("last", last.getTable());
+      assertEquals(Long.MAX_VALUE, last.getIds()[0]);
+    }
+  }
+
+  /* The keys whose home slot in a table of 16 slots is the given one, the
+   * same hash as the LongMap */
+  private static List<Long> keysOfSlot(int slot, int count) {
+    List<Long> res = new ArrayList<>();
+    for(long key=1; res.size() < count; ++key) {
+      long h = key * 0x9e3779b97f4a7c15L;
+      if (((int) (h ^ (h >>> 32)) & 15) == slot) {
+        res.add(key);
+      }
+    }
+    return res;
+  }
+
+  @Test
+  public void testLongMapCollisions() {
+    // Three keys colliding on the last slot wrap around to the start of the
+    // table, followed by a key whose home is the first slot
+    List<Long> colliding = keysOfSlot(15, 3);
+    long first = keysOfSlot(0, 1).get(0);
+
+    LongMap<String> map = new LongMap<>(4);
+    for(long key:colliding) {
+      map.put(key, "v" + key);
+    }
+    map.put(first, "v" + first);
+    assertEquals(4, map.size());
+
+    // Removing the head of the probe sequence shifts the others back across
+    // the wrap
+    assertEquals("v" + colliding.get(0), map.remove(colliding.get(0)));
+    assertNull(map.get(colliding.get(0)));
+    assertEquals("v" + colliding.get(1), map.get(colliding.get(1)));
+    assertEquals("v" + colliding.get(2), map.get(colliding.get(2)));
+    assertEquals("v" + first, map.get(first));
+
+    // and from the middle
+    assertEquals("v" + colliding.get(2), map.remove(colliding.get(2)));
+    assertEquals("v" + colliding.get(1), map.get(colliding.get(1)));
+    assertEquals("v" + first, map.get(first));
+    assertNull(map.remove(colliding.get(2)));
+    assertEquals(2, map.size());
+
+    // A key put again replaces the value
+    assertEquals("v" + first, map.put(first, "w"));
+    assertEquals("w", map.get(first));
+    assertEquals(2, map.size());
+
+    // The entries following the removed one across the wrap stay where they
+    // are when still reachable from their home slot
+    long a = keysOfSlot(14, 1).get(0);
+    long b = keysOfSlot(15, 1).get(0);
+    LongMap<String> wrapped = new LongMap<>(4);
+    wrapped.put(a, "a");
+    wrapped.put(b, "b");
+    wrapped.put(first, "c");
+    assertEquals("a", wrapped.remove(a));
+    assertEquals("b", wrapped.get(b));
+    assertEquals("c", wrapped.get(first));
+
+    // while an entry that has wrapped is shifted back after the removal of
+    // an entry past the wrap
+    LongMap<String> past = new LongMap<>(4);
+    for(long key:colliding) {
+      past.put(key, "v" + key);
+    }
+    assertEquals("v" + colliding.get(1), past.remove(colliding.get(1)));
+    assertEquals("v" + colliding.get(0), past.get(colliding.get(0)));
+    assertEquals("v" + colliding.get(2), past.get(colliding.get(2)));
+  }
+
+  @Test
+  public void testLongMapAgainstHashMap() {
+    // Starting small, the map is rehashed a few times on the way
+    LongMap<Long> map = new LongMap<>();
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(17);
+    for(int i=0; i<200000; ++i) {
+      // A narrow key range keeps the collisions and the removals frequent
+      long key = random.nextInt(5000) - 2500;
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+      }
+    }
+
+    assertEquals(expected.size(), map.size());
+    for(long key=-2500; key<2500; ++key) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+
+    // A few keys in a small table wrap around all the time
+    LongMap<Long> small = new LongMap<>();
+    Map<Long, Long> smallExpected = new HashMap<>();
+    for(int i=0; i<100000; ++i) {
+      long key = random.nextInt(12);
+      if (random.nextBoolean()) {
+        assertEquals(smallExpected.remove(key), small.remove(key));
+      } else {
+        assertEquals(smallExpected.put(key, (long) i), small.put(key, (long) i));
+      }
+      for(long k=0; k<12; ++k) {
+        assertEquals(smallExpected.get(k), small.get(k));
+      }
+    }
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(expected.keySet().iterator().next()));
+  }
+}
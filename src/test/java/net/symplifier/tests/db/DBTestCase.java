@@ -1,19 +1,45 @@
 package net.symplifier.tests.db;
 
 import net.symplifier.core.application.Session;
+import net.symplifier.db.Column;
+import net.symplifier.db.DBSession;
 import net.symplifier.db.Driver;
+import net.symplifier.db.FilterCompiler;
+import net.symplifier.db.ListResult;
+import net.symplifier.db.ModelRow;
+import net.symplifier.db.ModelRowCodec;
+import net.symplifier.db.ModelStructure;
 import net.symplifier.db.Query;
 import net.symplifier.db.Schema;
+import net.symplifier.db.cache.CachePolicy;
+import net.symplifier.db.cache.Invalidation;
+import net.symplifier.db.cache.LoopbackBus;
+import net.symplifier.db.cache.MemoryIndex;
+import net.symplifier.db.cache.OffHeapRowCache;
+import net.symplifier.db.driver.jdbc.JDBCDriver;
+import net.symplifier.db.driver.jdbc.JDBCSession;
 import net.symplifier.db.driver.jdbc.sqlite.Sqlite;
+import net.symplifier.db.exceptions.ConcurrentUpdateException;
 import net.symplifier.db.exceptions.DatabaseException;
+import net.symplifier.db.exceptions.ModelException;
 import net.symplifier.tests.db.system.*;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
 
 /**
  * Created by ranjan on 7/3/15.
@@ -234,4 +260,774 @@ public class DBTestCase implements Schema.Generator {
 
   }
 
+  @Test
+  public void testSelectInManyToMany() {
+    Session session = Session.start(null);
+
+    String title = "Select In " + System.nanoTime();
+    Author first = new Author();
+    first.set(Author.name, "First Author");
+    Author second = new Author();
+    second.set(Author.name, "Second Author");
+
+    Book book = new Book();
+    book.setTitle(title);
+    book.addAuthor(first);
+    book.addAuthor(second);
+    book.save();
+
+    // The authors are loaded through the intermediate table with a separate query
+    List<Book> books = Book.Q().join(Book.authors.selectIn())
+            .where(Book.title.eq(title))
+            .build().execute().toList();
+    assertEquals(1, books.size());
+
+    List<Author> authors = books.get(0).get(Book.authors);
+    assertEquals(2, authors.size());
+    assertTrue(authors.stream().anyMatch(a -> a.getId().equals(first.getId())));
+    assertTrue(authors.stream().anyMatch(a -> a.getId().equals(second.getId())));
+
+    session.end();
+  }
+
+  @Test
+  public void testBatchInsertSavedTwice() {
+    Session session = Session.start(null);
+    JDBCSession db = (JDBCSession) Session.get(Schema.get(), DBSession.class);
+    db.setBatchInserts(true);
+
+    String name = "Batch " + System.nanoTime();
+    Publisher pub = new Publisher();
+    pub.setName(name);
+    pub.save();
+    // Saved again before the flush, the row must not be queued twice
+    pub.setName(name + " Updated");
+    pub.save();
+    db.flush();
+
+    assertNotNull(pub.getId());
+    assertEquals(0, Publisher.Q().where(Publisher.name.eq(name)).count());
+    assertEquals(1, Publisher.Q().where(Publisher.name.eq(name + " Updated")).count());
+
+    session.end();
+  }
+
+  @Test
+  public void testBatchInsertDeletedBeforeFlush() {
+    Session session = Session.start(null);
+    JDBCSession db = (JDBCSession) Session.get(Schema.get(), DBSession.class);
+    db.setBatchInserts(true);
+
+    String name = "Batch Delete " + System.nanoTime();
+    Publisher pub = new Publisher();
+    pub.setName(name);
+    pub.save();
+    db.delete(pub.getPrimaryRow());
+
+    assertEquals(0, Publisher.Q().where(Publisher.name.eq(name)).count());
+
+    session.end();
+  }
+
+  @Test
+  public void testBatchInsertIds() {
+    JDBCDriver driver = (JDBCDriver) Schema.get().getDriver();
+    // Both with the multi-row INSERT statements and the JDBC batches
+    for(boolean multiRow:new boolean[] {true, false}) {
+      driver.setMultiRowInserts(multiRow);
+      Session session = Session.start(null);
+      JDBCSession db = (JDBCSession) Session.get(Schema.get(), DBSession.class);
+      db.setBatchInserts(true);
+
+      String prefix = "Batch " + multiRow + " " + System.nanoTime() + " - ";
+      List<Publisher> publishers = new ArrayList<>();
+      for(int i=0; i<1200; ++i) {
+        Publisher pub = new Publisher();
+        pub.setName(prefix + i);
+        pub.save();
+        publishers.add(pub);
+      }
+      db.flush();
+
+      // Every row must have got the id that the database generated for it
+      for(Publisher pub:publishers) {
+        assertNotNull(pub.getId());
+        List<Publisher> res = Publisher.Q().where(Publisher.id.eq(pub.getId())).build().execute().toList();
+        assertEquals(1, res.size());
+        assertEquals(pub.getName(), res.get(0).getName());
+      }
+
+      session.end();
+    }
+    driver.setMultiRowInserts(true);
+  }
+
+  @Test
+  public void testVersionConflict() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+
+    Publisher pub = new Publisher();
+    pub.setName("Versioned " + System.nanoTime());
+    pub.save();
+    assertEquals(Long.valueOf(Column.Version.INITIAL), pub.getVersion());
+
+    // A copy of the row as read by someone else before the update
+    ModelRow stale = pub.getPrimaryRow().copy();
+
+    pub.setName("Versioned Update " + System.nanoTime());
+    pub.save();
+    assertEquals(Long.valueOf(Column.Version.INITIAL + 1), pub.getVersion());
+
+    stale.set(Publisher.name.getIndex(), "Stale Update");
+    try {
+      db.update(stale, pub.getId());
+      fail("The update of a stale row must fail");
+    } catch (ConcurrentUpdateException e) {
+      assertEquals(pub.getId().longValue(), e.getId());
+      assertEquals(Long.valueOf(Column.Version.INITIAL), e.getVersion());
+    }
+    assertEquals(0, Publisher.Q().where(Publisher.name.eq("Stale Update")).count());
+
+    session.end();
+  }
+
+  @Test
+  public void testIdentityMap() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+
+    Publisher pub = new Publisher();
+    pub.setName("Identity " + System.nanoTime());
+    pub.save();
+    db.commitTransaction(Schema.get());
+
+    // The same record loaded twice in a transaction is the same instance
+    Publisher first = Publisher.Q().where(Publisher.id.eq(pub.getId())).build().execute().toList().get(0);
+    Publisher second = Publisher.Q().where(Publisher.name.eq(pub.getName())).build().execute().toList().get(0);
+    assertSame(first, second);
+
+    // and a new instance in the next transaction
+    db.commitTransaction(Schema.get());
+    Publisher third = Publisher.Q().where(Publisher.id.eq(pub.getId())).build().execute().toList().get(0);
+    assertNotSame(first, third);
+    assertEquals(first.getName(), third.getName());
+
+    session.end();
+  }
+
+  @Test
+  public void testReadThroughWithChanges() {
+    ModelStructure<Publisher> structure = Schema.get().getModelStructure(Publisher.class);
+    try {
+      structure.getRow(Long.MAX_VALUE);
+      fail("The row cannot be loaded without a session");
+    } catch (DatabaseException e) {
+      // expected
+    }
+
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+
+    Publisher pub = new Publisher();
+    pub.setName("Uncommitted " + System.nanoTime());
+    pub.save();
+    assertTrue(db.hasChanges());
+
+    // The uncommitted record is visible to its own session only
+    assertNotNull(structure.getRow(pub.getId()));
+    assertNull(structure.getCachedRow(pub.getId()));
+
+    db.rollbackTransaction(Schema.get());
+    assertNull(structure.getCachedRow(pub.getId()));
+    assertNull(structure.getRow(pub.getId()));
+
+    session.end();
+  }
+
+  @Test
+  public void testReadOnlyPrefetch() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+
+    String title = "Read Only Prefetch " + System.nanoTime();
+    Publisher pub = new Publisher();
+    pub.setName(title);
+    pub.save();
+    Book book = new Book();
+    book.setTitle(title);
+    book.setPublisher(pub);
+    book.save();
+    db.commitTransaction(Schema.get());
+
+    // The publisher within the transaction
+    Publisher shared = Publisher.Q().where(Publisher.id.eq(pub.getId())).build().execute().toList().get(0);
+
+    List<Book> books = Book.Q().where(Book.title.eq(title)).readOnly()
+            .prefetch(Book.publisher).build().execute().toList();
+    assertEquals(1, books.size());
+    Publisher prefetched = books.get(0).getPublisher();
+    assertEquals(pub.getId(), prefetched.getId());
+    // retrieved only for reading, like the book
+    assertNotSame(shared, prefetched);
+    try {
+      prefetched.setName("Changed");
+      fail("The prefetched record of a read only query must be locked");
+    } catch (ModelException e) {
+      // expected
+    }
+
+    session.end();
+  }
+
+  @Test
+  public void testCacheSnapshotVersion() throws IOException {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+
+    Publisher pub = new Publisher();
+    pub.setName("Snapshot " + System.nanoTime());
+    pub.save();
+    db.commitTransaction(Schema.get());
+
+    Path file = Files.createTempFile("cache", ".snapshot");
+    try {
+      Schema.get().saveCacheSnapshot(file);
+      assertTrue(Schema.get().loadCacheSnapshot(file) > 0);
+
+      // An update changes neither the row count nor the largest id
+      pub.setName("Snapshot Update " + System.nanoTime());
+      pub.save();
+      db.commitTransaction(Schema.get());
+      assertEquals(0, Schema.get().loadCacheSnapshot(file));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+
+    session.end();
+  }
+
+  @Test
+  public void testInvalidationBus() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+    ModelStructure<Publisher> structure = Schema.get().getModelStructure(Publisher.class);
+
+    // The other node sharing the bus, which only listens here
+    LoopbackBus bus = new LoopbackBus();
+    List<Invalidation> received = new ArrayList<>();
+    bus.subscribe(received::add);
+    Schema.get().setInvalidationBus(bus);
+
+    Publisher pub = new Publisher();
+    pub.setName("Invalidation " + System.nanoTime());
+    pub.save();
+    db.commitTransaction(Schema.get());
+
+    received.clear();
+    pub.setName("Invalidation Update " + System.nanoTime());
+    pub.save();
+    db.commitTransaction(Schema.get());
+
+    // The commit is published with the ids of the changed rows
+    assertEquals(1, received.size());
+    Invalidation published = received.get(0);
+    assertEquals(structure.getTableName(), published.getTable());
+    assertArrayEquals(new long[] { pub.getId() }, published.getIds());
+
+    // The messages of the node itself are skipped
+    assertNotNull(structure.getRow(pub.getId()));
+    bus.publish(new Invalidation(published.getOrigin(), structure.getTableName(),
+            Collections.singletonList(pub.getId())));
+    assertNotNull(structure.getCachedRow(pub.getId()));
+
+    // the changes made by the other node evict the row
+    bus.publish(new Invalidation(published.getOrigin() + 1, structure.getTableName(),
+            Collections.singletonList(pub.getId())));
+    if (!structure.isFullyCached()) {
+      assertNull(structure.getCachedRow(pub.getId()));
+    }
+
+    session.end();
+  }
+
+  private static List<Long> matching(ModelStructure<Publisher> structure, Query.Filter<Publisher> filter,
+                                     List<ModelRow> rows) {
+    Predicate<ModelRow> predicate = FilterCompiler.compile(structure, filter.getEntities(), Collections.emptyMap());
+    List<Long> res = new ArrayList<>();
+    for(ModelRow row:rows) {
+      if (predicate.test(row)) {
+        res.add(row.getId());
+      }
+    }
+    return res;
+  }
+
+  @Test
+  public void testFilterCompiler() {
+    ModelStructure<Publisher> structure = Schema.get().getModelStructure(Publisher.class);
+    List<ModelRow> rows = new ArrayList<>();
+    String[] names = { "Alpha", "beta", null, "a.c", "abc" };
+    for(int i=0; i<names.length; ++i) {
+      ModelRow row = structure.newDetachedRow(i + 1);
+      row.set(Publisher.name.getIndex(), names[i], false);
+      rows.add(row);
+    }
+
+    // AND takes precedence, Alpha OR (beta AND id=2)
+    assertEquals(Arrays.asList(1L, 2L), matching(structure,
+            Publisher.name.eq("Alpha").or(Publisher.name.eq("beta")).and(Publisher.id.eq(2L)), rows));
+    // (Alpha OR beta) AND id=2
+    Query.Filter<Publisher> grouped = new Query.Filter<>();
+    grouped.append(Publisher.name.eq("Alpha").or(Publisher.name.eq("beta")));
+    grouped.and(Publisher.id.eq(2L));
+    assertEquals(Collections.singletonList(2L), matching(structure, grouped, rows));
+
+    // The comparisons with null never match
+    assertEquals(Arrays.asList(1L, 2L, 5L), matching(structure, Publisher.name.notEq("a.c"), rows));
+    assertEquals(Collections.singletonList(3L), matching(structure, Publisher.name.isNull(), rows));
+    assertEquals(Arrays.asList(1L, 4L, 5L), matching(structure, Publisher.name.lt("b"), rows));
+    assertEquals(Collections.emptyList(), matching(structure, Publisher.name.eq((String) null), rows));
+
+    // The LIKE wildcards, the other characters are literal
+    assertEquals(Collections.singletonList(1L), matching(structure, Publisher.name.like("A_p%"), rows));
+    assertEquals(Collections.singletonList(4L), matching(structure, Publisher.name.like("a.c"), rows));
+    assertEquals(Arrays.asList(4L, 5L), matching(structure, Publisher.name.like("a_c"), rows));
+    // and the case as on the database
+    boolean caseSensitive = Schema.get().getDriver().isLikeCaseSensitive();
+    assertEquals(caseSensitive ? Collections.emptyList() : Collections.singletonList(1L),
+            matching(structure, Publisher.name.like("alpha"), rows));
+  }
+
+  private static List<String> authorNames(Query.Builder<Author> builder) {
+    Query.Result<Author> result = builder.build().execute();
+    // Answered from the memory
+    assertTrue(result instanceof ListResult);
+    List<String> names = new ArrayList<>();
+    for(Author author:result.toList()) {
+      names.add(author.get(Author.name));
+    }
+    return names;
+  }
+
+  @Test
+  public void testMemoryQuery() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+    ModelStructure<Author> structure = Schema.get().getModelStructure(Author.class);
+    structure.addIndex(Author.name, MemoryIndex.Type.SORTED);
+
+    String prefix = "Memory " + System.nanoTime() + " ";
+    List<Author> authors = new ArrayList<>();
+    for(String name:new String[] { "a", "b", "c", "d", null }) {
+      Author author = new Author();
+      author.set(Author.name, name == null ? null : prefix + name);
+      author.save();
+      authors.add(author);
+    }
+    db.commitTransaction(Schema.get());
+
+    structure.loadAll();
+    assertTrue(structure.isFullyCached());
+
+    // The range on the sorted index within the prefix, combined with the
+    // other conditions
+    Query.Filter<Author> range = Author.name.gtEq(prefix).and(Author.name.lt(prefix + "~"));
+    assertEquals(Arrays.asList(prefix + "a", prefix + "b", prefix + "c", prefix + "d"),
+            authorNames(Author.Q().where(range).asc(Author.name)));
+    assertEquals(Arrays.asList(prefix + "b", prefix + "c"),
+            authorNames(Author.Q().where(Author.name.gt(prefix + "a").and(Author.name.ltEq(prefix + "c")))
+                    .asc(Author.name)));
+    assertEquals(Arrays.asList(prefix + "a", prefix + "c", prefix + "d"),
+            authorNames(Author.Q().where(Author.name.gtEq(prefix).and(Author.name.lt(prefix + "~"))
+                    .and(Author.name.notEq(prefix + "b"))).asc(Author.name)));
+    assertEquals(Arrays.asList(prefix + "a", prefix + "d"),
+            authorNames(Author.Q().where(Author.name.eq(prefix + "a").or(Author.name.eq(prefix + "d")))
+                    .asc(Author.name)));
+    assertTrue(authorNames(Author.Q().where(Author.name.isNotNull())).contains(prefix + "a"));
+    assertFalse(authorNames(Author.Q().where(Author.name.isNotNull())).contains(null));
+    assertTrue(authorNames(Author.Q().where(Author.name.isNull())).contains(null));
+
+    // The nulls are ordered as on the database
+    List<String> ordered = authorNames(Author.Q().fromCache()
+            .where(Author.id.in(authors.get(0).getId(), authors.get(4).getId())).asc(Author.name));
+    boolean nullsFirst = Schema.get().getDriver().isNullsFirst();
+    assertEquals(nullsFirst ? Arrays.asList(null, prefix + "a") : Arrays.asList(prefix + "a", null), ordered);
+
+    // The committed update and delete are reflected in the indexes
+    authors.get(1).set(Author.name, prefix + "e");
+    authors.get(1).save();
+    db.delete(authors.get(2).getPrimaryRow());
+    db.commitTransaction(Schema.get());
+    assertTrue(structure.isFullyCached());
+
+    assertEquals(Collections.emptyList(), authorNames(Author.Q().where(Author.name.eq(prefix + "b"))));
+    assertEquals(Collections.singletonList(prefix + "e"), authorNames(Author.Q().where(Author.name.eq(prefix + "e"))));
+    assertEquals(Arrays.asList(prefix + "a", prefix + "d", prefix + "e"),
+            authorNames(Author.Q().where(range).asc(Author.name)));
+    assertEquals(Arrays.asList(prefix + "a", prefix + "e"),
+            authorNames(Author.Q().where(Author.name.gtEq(prefix).and(Author.name.lt(prefix + "~"))
+                    .and(Author.name.notEq(prefix + "d"))).asc(Author.name)));
+
+    session.end();
+  }
+
+  @Test
+  public void testCopyOnWrite() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+    ModelStructure<Publisher> structure = Schema.get().getModelStructure(Publisher.class);
+    int name = Publisher.name.getIndex();
+
+    String original = "Copy On Write " + System.nanoTime();
+    Publisher pub = new Publisher();
+    pub.setName(original);
+    pub.save();
+    db.commitTransaction(Schema.get());
+    long id = pub.getId();
+
+    // The record shares the cached row
+    Publisher record = Publisher.Q().where(Publisher.id.eq(id)).build().execute().toList().get(0);
+    ModelRow cached = structure.getCachedRow(id);
+    assertSame(cached, record.getPrimaryRow());
+
+    // The changes go to a private copy of the row until the commit
+    record.setName(original + " Changed");
+    assertEquals(original, cached.get(name));
+    record.save();
+    assertSame(cached, structure.getCachedRow(id));
+    assertEquals(original, cached.get(name));
+
+    db.commitTransaction(Schema.get());
+    ModelRow committed = structure.getCachedRow(id);
+    assertEquals(original + " Changed", committed.get(name));
+    assertEquals(original, cached.get(name));
+
+    // A partially loaded row never replaces the complete one
+    ModelRow partial = structure.newDetachedRow(id);
+    partial.set(name, "Partial", false);
+    assertSame(committed, structure.publishRow(partial));
+    assertSame(committed, structure.getCachedRow(id));
+
+    // nor does an older version
+    long version = (Long) committed.get(Publisher.version.getIndex());
+    ModelRow older = structure.newLoadingRow(id);
+    older.set(name, "Older", false);
+    older.set(Publisher.version.getIndex(), version - 1, false);
+    assertSame(committed, structure.publishRow(older));
+    assertSame(committed, structure.getCachedRow(id));
+
+    // while the same or a newer version does
+    ModelRow newer = structure.newLoadingRow(id);
+    newer.set(Publisher.version.getIndex(), version + 1, false);
+    assertSame(newer, structure.publishRow(newer));
+    assertSame(newer, structure.getCachedRow(id));
+
+    session.end();
+  }
+
+  @Test
+  public void testGetAll() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+    ModelStructure<Publisher> structure = Schema.get().getModelStructure(Publisher.class);
+
+    // More records than a single batch of the IN queries
+    String name = "Get All " + System.nanoTime();
+    List<Long> ids = new ArrayList<>();
+    for(int i=0; i<1200; ++i) {
+      Publisher pub = new Publisher();
+      pub.setName(name);
+      pub.save();
+      ids.add(pub.getId());
+    }
+    db.commitTransaction(Schema.get());
+
+    // Every other record is evicted from the cache, as on a change made by
+    // another node
+    LoopbackBus bus = new LoopbackBus();
+    Schema.get().setInvalidationBus(bus);
+    List<Long> evicted = new ArrayList<>();
+    for(int i=0; i<ids.size(); i += 2) {
+      evicted.add(ids.get(i));
+    }
+    bus.publish(new Invalidation(0, structure.getTableName(), evicted));
+    assertNull(structure.getCachedRow(ids.get(0)));
+
+    // Requested backwards, with the duplicates and the ids that don't exist
+    List<Long> request = new ArrayList<>();
+    List<Long> expected = new ArrayList<>();
+    for(int i=ids.size()-1; i>=0; --i) {
+      request.add(ids.get(i));
+      expected.add(ids.get(i));
+      if (i % 100 == 0) {
+        request.add(-(long) i - 1);
+        request.add(ids.get(i + 1));
+        expected.add(ids.get(i + 1));
+      }
+    }
+
+    List<Publisher> records = structure.getAll(request);
+    List<Long> retrieved = new ArrayList<>();
+    for(Publisher pub:records) {
+      retrieved.add(pub.getId());
+    }
+    assertEquals(expected, retrieved);
+
+    // The duplicates are the same record
+    assertSame(records.get(0), Publisher.Q().where(Publisher.id.eq(ids.get(ids.size() - 1))).build()
+            .execute().toList().get(0));
+    assertSame(records.get(retrieved.indexOf(ids.get(1))), records.get(retrieved.lastIndexOf(ids.get(1))));
+
+    session.end();
+  }
+
+  @Test
+  public void testFindByAfterUpdate() {
+    Session session = Session.start(null);
+    DBSession db = Session.get(Schema.get(), DBSession.class);
+    ModelStructure<Book> structure = Schema.get().getModelStructure(Book.class);
+
+    String first = "ISBN " + System.nanoTime();
+    String second = first + " Changed";
+    Book book = new Book();
+    book.setTitle("Find By");
+    book.setISBN(first);
+    book.save();
+    db.commitTransaction(Schema.get());
+    Long id = book.getId();
+
+    assertEquals(id, structure.findBy(Book.isbn, first).getId());
+
+    // The old value no longer finds the record once the change is committed
+    book.setISBN(second);
+    book.save();
+    db.commitTransaction(Schema.get());
+    assertNull(structure.findBy(Book.isbn, first));
+    assertEquals(id, structure.findBy(Book.isbn, second).getId());
+
+    // and the value can be taken back
+    book.setISBN(first);
+    book.save();
+    db.commitTransaction(Schema.get());
+    assertNull(structure.findBy(Book.isbn, second));
+    assertEquals(id, structure.findBy(Book.isbn, first).getId());
+
+    // The lookup still holds with the row evicted from the cache
+    LoopbackBus bus = new LoopbackBus();
+    Schema.get().setInvalidationBus(bus);
+    bus.publish(new Invalidation(0, structure.getTableName(), Collections.singletonList(id)));
+    assertNull(structure.getCachedRow(id));
+    assertEquals(id, structure.findBy(Book.isbn, first).getId());
+    assertNull(structure.findBy(Book.isbn, second));
+
+    session.end();
+  }
+
+  @Test
+  public void testAggregates() {
+    Session session = Session.start(null);
+
+    String name = "Aggregate " + System.nanoTime();
+    for(int i=0; i<3; ++i) {
+      Publisher pub = new Publisher();
+      pub.setName(name);
+      pub.save();
+    }
+    assertEquals(3, Publisher.Q().where(Publisher.name.eq(name)).count());
+    // The limit applies with or without the joins
+    assertEquals(2, Publisher.Q().where(Publisher.name.eq(name)).limit(2).count());
+
+    Book book = new Book();
+    book.setTitle(name);
+    Author first = new Author();
+    first.set(Author.name, "First Author");
+    Author second = new Author();
+    second.set(Author.name, "Second Author");
+    book.addAuthor(first);
+    book.addAuthor(second);
+    book.save();
+
+    // The book is counted (and summed up) once, although joined with two authors
+    Query.Builder<Book> q = Book.Q().join(Book.authors).where(Book.title.eq(name));
+    assertEquals(1, q.count());
+    assertEquals(book.getId(), q.sum(Book.id));
+
+    session.end();
+  }
+
+  @Test
+  public void testKeysetPagination() {
+    Session session = Session.start(null);
+
+    String name = "Keyset " + System.nanoTime();
+    List<Long> ids = new ArrayList<>();
+    for(int i=0; i<7; ++i) {
+      Publisher pub = new Publisher();
+      pub.setName(name);
+      pub.save();
+      ids.add(pub.getId());
+    }
+
+    // Page through the records with the continuation token of each page
+    List<Long> paged = new ArrayList<>();
+    String token = null;
+    while (true) {
+      Query.Result<Publisher> page = Publisher.Q().where(Publisher.name.eq(name))
+              .asc(Publisher.id).limit(3).after(token).build().execute();
+      List<Publisher> records = page.toList();
+      if (records.isEmpty()) {
+        break;
+      }
+      assertTrue(records.size() <= 3);
+      for(Publisher pub:records) {
+        paged.add(pub.getId());
+      }
+      token = page.getContinuationToken();
+    }
+    assertEquals(ids, paged);
+
+    session.end();
+  }
+
+  @Test
+  public void testKeysetPaginationWithJoins() {
+    Session session = Session.start(null);
+
+    // The records of the query are interleaved with the ones filtered out
+    String name = "Keyset Join " + System.nanoTime();
+    List<Long> ids = new ArrayList<>();
+    for(int i=0; i<7; ++i) {
+      Publisher other = new Publisher();
+      other.setName("Other " + name);
+      other.save();
+
+      Publisher pub = new Publisher();
+      pub.setName(name);
+      pub.save();
+      ids.add(pub.getId());
+      for(int j=0; j<2; ++j) {
+        Book book = new Book();
+        book.setTitle(name + " " + i + "." + j);
+        book.setPublisher(pub);
+        book.save();
+      }
+    }
+
+    // The page is selected out of the filtered records before the join
+    List<Long> paged = new ArrayList<>();
+    String token = null;
+    while (true) {
+      Query.Result<Publisher> page = Publisher.Q().join(Publisher.books).where(Publisher.name.eq(name))
+              .asc(Publisher.id).limit(3).after(token).build().execute();
+      List<Publisher> records = page.toList();
+      if (records.isEmpty()) {
+        break;
+      }
+      assertEquals(Math.min(3, ids.size() - paged.size()), records.size());
+      for(Publisher pub:records) {
+        assertEquals(2, pub.get(Publisher.books).size());
+        paged.add(pub.getId());
+      }
+      token = page.getContinuationToken();
+    }
+    assertEquals(ids, paged);
+
+    session.end();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testKeysetPaginationWithProjection() {
+    Session session = Session.start(null);
+
+    // The names are ordered opposite to the ids
+    String name = "Keyset Projection " + System.nanoTime();
+    List<Long> ids = new ArrayList<>();
+    for(int i=5; i>0; --i) {
+      Publisher pub = new Publisher();
+      pub.setName(name + " " + i);
+      pub.save();
+      ids.add(0, pub.getId());
+    }
+
+    // The name used for the ordering is not part of the projection
+    ModelStructure<Publisher> structure = Schema.get().getModelStructure(Publisher.class);
+    List<Long> paged = new ArrayList<>();
+    String token = null;
+    while (true) {
+      Query.Result<Publisher> page = new Query.Builder<>(structure, new Column[]{Publisher.id})
+              .where(Publisher.name.like(name + "%")).asc(Publisher.name)
+              .limit(2).after(token).build().execute();
+      List<Publisher> records = page.toList();
+      if (records.isEmpty()) {
+        break;
+      }
+      for(Publisher pub:records) {
+        paged.add(pub.getId());
+      }
+      token = page.getContinuationToken();
+    }
+    assertEquals(ids, paged);
+
+    session.end();
+  }
+
+  @Test
+  public void testStatementCache() {
+    JDBCDriver driver = (JDBCDriver) Schema.get().getDriver();
+    Session session = Session.start(null);
+
+    Publisher.Q().where(Publisher.name.eq("Cached Statement")).build().execute().toList();
+    long hits = driver.getStatementCacheHits();
+    // The same query again reuses the statement prepared on the connection
+    Publisher.Q().where(Publisher.name.eq("Cached Statement")).build().execute().toList();
+    assertTrue(driver.getStatementCacheHits() > hits);
+
+    session.end();
+  }
+
+  private ModelRow newBookRow(ModelStructure<Book> structure, long id, String title, Long publisherId) {
+    ModelRow row = structure.newDetachedRow(id);
+    row.set(Book.title.getIndex(), title, false);
+    row.set(Book.publisher.getIndex(), publisherId, false);
+    row.setPartial(false);
+    return row;
+  }
+
+  @Test
+  public void testModelRowCodec() {
+    ModelStructure<Book> structure = Schema.get().getModelStructure(Book.class);
+    ModelRowCodec codec = new ModelRowCodec(structure);
+
+    // The null values (isbn, publisher) only take a bit in the bitmap
+    ModelRow[] rows = {
+            newBookRow(structure, 1, "Off Heap \u00e9dition", 5L),
+            newBookRow(structure, 2, null, null)
+    };
+    for(ModelRow row:rows) {
+      ModelRow decoded = codec.decode(ByteBuffer.wrap(codec.encode(row)));
+      assertArrayEquals(row.getData(), decoded.getData());
+      assertFalse(decoded.isPartial());
+      assertFalse(decoded.isModified());
+    }
+  }
+
+  @Test
+  public void testOffHeapRowCache() {
+    ModelStructure<Book> structure = Schema.get().getModelStructure(Book.class);
+    CachePolicy policy = new CachePolicy().setMaximumSize(10).setOffHeapSize(1024 * 1024);
+    ModelRowCodec codec = new ModelRowCodec(structure);
+    OffHeapRowCache cache = new OffHeapRowCache(policy, codec, id -> null);
+
+    // The rows given by the caller's loader reach the off heap store
+    cache.get(1L, id -> newBookRow(structure, id, "Loaded", null));
+    assertEquals(1, cache.getStore().size());
+    assertEquals("Loaded", cache.getStore().get(1L, codec::decode).get(Book.title.getIndex()));
+
+    // but not the partial ones
+    cache.get(2L, id -> structure.newDetachedRow(id));
+    assertEquals(1, cache.getStore().size());
+  }
+
 }
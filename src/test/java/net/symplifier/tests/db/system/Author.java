@@ -1,10 +1,13 @@
 package net.symplifier.tests.db.system;
 
 import net.symplifier.db.*;
+import net.symplifier.db.annotations.Table;
+import net.symplifier.db.cache.UnboundedRowCache;
 
 /**
  * Created by ranjan on 8/20/15.
  */
+@Table(cacheProvider = UnboundedRowCache.Provider.class)
 public class Author extends ModelInstance<Author> {
 
   public static Query.Builder<Author> Q() { return new Query.Builder<>(Author.class); }
@@ -13,7 +13,7 @@ public class Book extends ModelInstance<Book> {
 
   public static final Column.Primary<Book> id = new Column.Primary<>();
   public static final Column.Text<Book> title = new Column.Text<>();
-  public static final Column.Text<Book> isbn = new Column.Text<>();
+  public static final Column.Text<Book> isbn = new Column.Text<>(new Column.Builder<String>().setUnique(true).setCacheLimit(100));
   public static final Column.Reference<Book, Publisher> publisher = new Column.Reference<>(Publisher.class);
 
   public static final Relation.HasMany<Book, Author> authors = new Relation.HasMany<>(Author.class, "book_author");
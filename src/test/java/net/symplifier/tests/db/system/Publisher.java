@@ -11,6 +11,7 @@ public class Publisher extends ModelInstance<Publisher> {
 
   public static final Column.Primary<Publisher> id = new Column.Primary<>();
   public static final Column.Text<Publisher> name = new Column.Text<>();
+  public static final Column.Version<Publisher> version = new Column.Version<>();
 
   public static final Relation.HasMany<Publisher, Book> books = new Relation.HasMany<>(Book.class, Book.publisher);
 
@@ -22,5 +23,9 @@ public class Publisher extends ModelInstance<Publisher> {
     set(name, value);
   }
 
+  public Long getVersion() {
+    return get(version);
+  }
+
 
 }